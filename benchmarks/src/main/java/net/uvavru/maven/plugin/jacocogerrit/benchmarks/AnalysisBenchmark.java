@@ -0,0 +1,76 @@
+package net.uvavru.maven.plugin.jacocogerrit.benchmarks;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.uvavru.maven.plugin.jacocogerrit.JacocoReader;
+import net.uvavru.maven.plugin.jacocogerrit.SourceFilesMapper;
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading of the exec file and the analysis of the classes of the modified source files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalysisBenchmark {
+    private static final int MODULES = 4;
+
+    @Param({"250", "2500"})
+    public int classesPerModule;
+
+    @Param({"10", "500"})
+    public int patchFiles;
+
+    @Param({"0", "50000"})
+    public int unrelatedClasses;
+
+    @Param({"true", "false"})
+    public boolean targetedAnalysis;
+
+    @Param({"1", "4"})
+    public int analysisThreads;
+
+    private SyntheticReactor reactor;
+    private JacocoReader jacocoReader;
+    private Map<String, Map<String, String>> mapping;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, MojoFailureException {
+        reactor = new SyntheticReactor(MODULES, classesPerModule, 200, unrelatedClasses);
+        BenchmarkMojo mojo = new BenchmarkMojo(reactor)
+                .withTargetedAnalysis(targetedAnalysis)
+                .withAnalysisThreads(analysisThreads);
+        jacocoReader = new JacocoReader(mojo);
+        mapping = new SourceFilesMapper(mojo).calculateMapping(reactor.patch(patchFiles));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reactor.close();
+    }
+
+    @Benchmark
+    public PatchCoverageInput readCoverage() throws MojoFailureException {
+        return jacocoReader.readCoverage(mapping);
+    }
+}
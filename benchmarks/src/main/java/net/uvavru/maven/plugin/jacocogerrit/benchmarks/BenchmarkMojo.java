@@ -0,0 +1,119 @@
+package net.uvavru.maven.plugin.jacocogerrit.benchmarks;
+
+import java.io.File;
+import java.util.List;
+
+import net.uvavru.maven.plugin.jacocogerrit.JacocoGerritMojo;
+
+import org.apache.maven.project.MavenProject;
+
+/**
+ * The JacocoGerritMojo configured for benchmarks, i.e., without Maven injecting the parameters.
+ */
+public class BenchmarkMojo extends JacocoGerritMojo {
+    private final SyntheticReactor reactor;
+
+    private boolean targetedAnalysis = true;
+    private int analysisThreads = 1;
+    private int gerritPort;
+
+    public BenchmarkMojo(SyntheticReactor reactor) {
+        this.reactor = reactor;
+    }
+
+    public BenchmarkMojo withTargetedAnalysis(boolean targetedAnalysis) {
+        this.targetedAnalysis = targetedAnalysis;
+        return this;
+    }
+
+    public BenchmarkMojo withAnalysisThreads(int analysisThreads) {
+        this.analysisThreads = analysisThreads;
+        return this;
+    }
+
+    public BenchmarkMojo withGerritPort(int gerritPort) {
+        this.gerritPort = gerritPort;
+        return this;
+    }
+
+    @Override
+    public MavenProject getProject() {
+        return reactor.getProject();
+    }
+
+    @Override
+    public File getExecFile() {
+        return reactor.getExecFile();
+    }
+
+    @Override
+    public List<String> getExecFiles() {
+        return null;
+    }
+
+    @Override
+    public boolean isTargetedAnalysis() {
+        return targetedAnalysis;
+    }
+
+    @Override
+    public int getAnalysisThreads() {
+        return analysisThreads;
+    }
+
+    @Override
+    public boolean isAnalysisCache() {
+        // the benchmarks measure the analysis itself
+        return false;
+    }
+
+    @Override
+    public String getHost() {
+        return "localhost";
+    }
+
+    @Override
+    public Integer getPort() {
+        return gerritPort;
+    }
+
+    @Override
+    public String getScheme() {
+        return "http";
+    }
+
+    @Override
+    public String getBasePath() {
+        return "/";
+    }
+
+    @Override
+    public String getUsername() {
+        return "benchmark";
+    }
+
+    @Override
+    public String getPassword() {
+        return "benchmark";
+    }
+
+    @Override
+    public String getProjectName() {
+        return "benchmark";
+    }
+
+    @Override
+    public String getBranchName() {
+        return "master";
+    }
+
+    @Override
+    public String getChangeId() {
+        return "I0000000000000000000000000000000000000000";
+    }
+
+    @Override
+    public String getRevisionId() {
+        return "0000000000000000000000000000000000000000";
+    }
+}
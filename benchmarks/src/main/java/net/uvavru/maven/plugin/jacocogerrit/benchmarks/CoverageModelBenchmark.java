@@ -0,0 +1,60 @@
+package net.uvavru.maven.plugin.jacocogerrit.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.uvavru.maven.plugin.jacocogerrit.model.FileCoverageInput;
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures population of the coverage model, the way the analysis does it: the lines of a class in ascending order, followed
+ * by the lines of its inner class that interleave with them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoverageModelBenchmark {
+    @Param({"10", "500"})
+    public int files;
+
+    @Param({"100", "5000"})
+    public int linesPerFile;
+
+    private String[] filePaths;
+
+    @Setup
+    public void setUp() {
+        filePaths = new String[files];
+        for (int i = 0; i < files; ++i) {
+            filePaths[i] = "module/src/main/java/pkg/Class" + i + ".java";
+        }
+    }
+
+    @Benchmark
+    public PatchCoverageInput populate() {
+        PatchCoverageInput patchCoverageInput = new PatchCoverageInput();
+        for (String filePath : filePaths) {
+            for (int line = 1; line <= linesPerFile; line += 2) {
+                patchCoverageInput.setLineCoverage(filePath, line, line % 3 == 0 ? 0 : 1, 2, line % 3);
+            }
+            for (int line = 2; line <= linesPerFile; line += 2) {
+                patchCoverageInput.setLineCoverage(filePath, line, 1, FileCoverageInput.NONE, FileCoverageInput.NONE);
+            }
+        }
+        return patchCoverageInput;
+    }
+}
@@ -0,0 +1,63 @@
+package net.uvavru.maven.plugin.jacocogerrit.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.uvavru.maven.plugin.jacocogerrit.SourceFilesMapper;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures mapping of the files modified in a patchset to the output directories of the modules, including indexing of the
+ * source roots of the reactor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingBenchmark {
+    @Param({"10", "200"})
+    public int modules;
+
+    @Param({"10", "1000"})
+    public int patchFiles;
+
+    private SyntheticReactor reactor;
+    private BenchmarkMojo mojo;
+    private List<String> patch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // the class files are not needed, keep the reactor small
+        reactor = new SyntheticReactor(modules, Math.max(1, patchFiles / modules), 4, 0);
+        mojo = new BenchmarkMojo(reactor);
+        patch = reactor.patch(patchFiles);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reactor.close();
+    }
+
+    @Benchmark
+    public Map<String, Map<String, String>> calculateMapping() throws MojoFailureException {
+        return new SourceFilesMapper(mojo).calculateMapping(patch);
+    }
+}
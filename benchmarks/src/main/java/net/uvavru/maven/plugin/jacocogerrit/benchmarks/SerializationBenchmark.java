@@ -0,0 +1,105 @@
+package net.uvavru.maven.plugin.jacocogerrit.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import net.uvavru.maven.plugin.jacocogerrit.CoverageJsonWriter;
+import net.uvavru.maven.plugin.jacocogerrit.GerritFacade;
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures serialization of the coverage to JSON and its upload to an in-process stub of Gerrit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"10", "500"})
+    public int files;
+
+    @Param({"1000"})
+    public int linesPerFile;
+
+    private PatchCoverageInput patchCoverageInput;
+    private final CoverageJsonWriter coverageJsonWriter = new CoverageJsonWriter();
+
+    private SyntheticReactor reactor;
+    private StubGerrit stubGerrit;
+    private BenchmarkMojo mojo;
+    private GerritFacade gerritFacade;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, MojoFailureException {
+        patchCoverageInput = new PatchCoverageInput();
+        for (int i = 0; i < files; ++i) {
+            String filePath = "module/src/main/java/pkg/Class" + i + ".java";
+            for (int line = 1; line <= linesPerFile; ++line) {
+                patchCoverageInput.setLineCoverage(filePath, line, line % 3 == 0 ? 0 : 1, 2, line % 3);
+            }
+        }
+
+        reactor = new SyntheticReactor(1, 1, 4, 0);
+        stubGerrit = new StubGerrit();
+        mojo = new BenchmarkMojo(reactor).withGerritPort(stubGerrit.getPort());
+        gerritFacade = new GerritFacade(mojo);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, MojoFailureException {
+        mojo.getGerritClient().close();
+        stubGerrit.close();
+        reactor.close();
+    }
+
+    @Benchmark
+    public void writeJson(Blackhole blackhole) throws IOException {
+        coverageJsonWriter.write(patchCoverageInput, new BlackholeOutputStream(blackhole));
+    }
+
+    @Benchmark
+    public boolean upload() throws MojoFailureException {
+        return gerritFacade.setCoverage(patchCoverageInput);
+    }
+
+    /**
+     * Consumes the written bytes so that the JIT can't eliminate the serialization.
+     */
+    private static class BlackholeOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            blackhole.consume(bytes);
+            blackhole.consume(length);
+        }
+    }
+}
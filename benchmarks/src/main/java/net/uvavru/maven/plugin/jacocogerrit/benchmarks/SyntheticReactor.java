@@ -0,0 +1,188 @@
+package net.uvavru.maven.plugin.jacocogerrit.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.maven.model.Build;
+import org.apache.maven.project.MavenProject;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.SessionInfo;
+import org.jacoco.core.internal.data.CRC64;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * The SyntheticReactor generates a multi-module reactor on disk: source files, class files (with line numbers and branches)
+ * and a JaCoCo exec file with random probes. The exec file can be inflated by the execution data of classes that don't belong
+ * to the reactor.
+ */
+public class SyntheticReactor implements Closeable {
+    private static final int METHODS_PER_CLASS = 4;
+
+    private final Path basedir;
+    private final MavenProject project;
+    private final List<String> sourceFiles = new ArrayList<>();
+    private final File execFile;
+
+    /**
+     * @param modules          the number of modules
+     * @param classesPerModule the number of top level classes (each with an inner class) per module
+     * @param linesPerClass    the number of lines with code per class
+     * @param unrelatedClasses the number of additional classes in the exec file that are not part of the reactor
+     */
+    public SyntheticReactor(int modules, int classesPerModule, int linesPerClass, int unrelatedClasses) throws IOException {
+        basedir = Files.createTempDirectory("jacoco-gerrit-benchmark");
+        execFile = basedir.resolve("target/jacoco.exec").toFile();
+        Files.createDirectories(execFile.toPath().getParent());
+
+        project = project(basedir, "reactor");
+        List<MavenProject> collectedProjects = new ArrayList<>();
+        Random random = new Random(42);
+
+        try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(execFile.toPath()))) {
+            ExecutionDataWriter writer = new ExecutionDataWriter(outputStream);
+            writer.visitSessionInfo(new SessionInfo("benchmark", 0, 0));
+
+            for (int module = 0; module < modules; ++module) {
+                Path moduleDir = basedir.resolve("module-" + module);
+                MavenProject moduleProject = project(moduleDir, "module-" + module);
+                collectedProjects.add(moduleProject);
+
+                for (int clazz = 0; clazz < classesPerModule; ++clazz) {
+                    String className = "pkg/m" + module + "/Class" + clazz;
+
+                    Path sourceFile = moduleDir.resolve("src/main/java/" + className + ".java");
+                    Files.createDirectories(sourceFile.getParent());
+                    Files.write(sourceFile, "// synthetic".getBytes());
+                    sourceFiles.add(basedir.relativize(sourceFile).toString());
+
+                    writeClass(writer, random, moduleProject, className, 1, linesPerClass);
+                    writeClass(writer, random, moduleProject, className + "$Inner", linesPerClass + 1, linesPerClass / 4);
+                }
+            }
+
+            for (int clazz = 0; clazz < unrelatedClasses; ++clazz) {
+                writer.visitClassExecution(new ExecutionData(random.nextLong(), "unrelated/Class" + clazz,
+                                                             probes(random, linesPerClass)));
+            }
+        }
+        project.setCollectedProjects(collectedProjects);
+    }
+
+    /**
+     * @return the root project of the reactor
+     */
+    public MavenProject getProject() {
+        return project;
+    }
+
+    public File getExecFile() {
+        return execFile;
+    }
+
+    /**
+     * @return given number of source files evenly spread over the modules, relative to the basedir of the reactor
+     */
+    public List<String> patch(int files) {
+        List<String> patch = new ArrayList<>();
+        int step = Math.max(1, sourceFiles.size() / Math.max(1, files));
+        for (int i = 0; i < sourceFiles.size() && patch.size() < files; i += step) {
+            patch.add(sourceFiles.get(i));
+        }
+        return patch;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> paths = Files.walk(basedir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static MavenProject project(Path basedir, String artifactId) {
+        MavenProject project = new MavenProject();
+        project.setArtifactId(artifactId);
+        project.setFile(basedir.resolve("pom.xml").toFile());
+        Build build = new Build();
+        build.setDirectory(basedir.resolve("target").toString());
+        build.setOutputDirectory(basedir.resolve("target/classes").toString());
+        project.setBuild(build);
+        project.addCompileSourceRoot(basedir.resolve("src/main/java").toString());
+        return project;
+    }
+
+    private static void writeClass(ExecutionDataWriter writer,
+                                   Random random,
+                                   MavenProject project,
+                                   String className,
+                                   int firstLine,
+                                   int lines) throws IOException {
+        byte[] classBytes = generateClass(className, firstLine, Math.max(METHODS_PER_CLASS, lines));
+        Path classFile = new File(project.getBuild().getOutputDirectory(), className + ".class").toPath();
+        Files.createDirectories(classFile.getParent());
+        Files.write(classFile, classBytes);
+        writer.visitClassExecution(new ExecutionData(CRC64.checksum(classBytes), className, probes(random, lines)));
+    }
+
+    /**
+     * Generates a class with methods consisting of lines like {@code if (x != 0) x++;}.
+     */
+    private static byte[] generateClass(String className, int firstLine, int lines) {
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classWriter.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, "java/lang/Object", null);
+        String simpleName = className.substring(className.lastIndexOf('/') + 1);
+        int innerClassSeparator = simpleName.indexOf('$');
+        classWriter.visitSource((innerClassSeparator < 0 ? simpleName : simpleName.substring(0, innerClassSeparator))
+                                        + ".java", null);
+
+        int linesPerMethod = lines / METHODS_PER_CLASS;
+        int line = firstLine;
+        for (int method = 0; method < METHODS_PER_CLASS; ++method) {
+            MethodVisitor methodVisitor = classWriter
+                    .visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "m" + method, "(I)I", null, null);
+            methodVisitor.visitCode();
+            for (int i = 0; i < linesPerMethod; ++i, ++line) {
+                Label lineLabel = new Label();
+                methodVisitor.visitLabel(lineLabel);
+                methodVisitor.visitLineNumber(line, lineLabel);
+                Label skip = new Label();
+                methodVisitor.visitVarInsn(Opcodes.ILOAD, 0);
+                methodVisitor.visitJumpInsn(Opcodes.IFEQ, skip);
+                methodVisitor.visitIincInsn(0, 1);
+                methodVisitor.visitLabel(skip);
+            }
+            methodVisitor.visitVarInsn(Opcodes.ILOAD, 0);
+            methodVisitor.visitInsn(Opcodes.IRETURN);
+            methodVisitor.visitMaxs(0, 0);
+            methodVisitor.visitEnd();
+        }
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * @return random probes; there are more of them than the probes of a generated class, the surplus ones are ignored
+     */
+    private static boolean[] probes(Random random, int lines) {
+        boolean[] probes = new boolean[2 * lines + 2 * METHODS_PER_CLASS + 8];
+        for (int i = 0; i < probes.length; ++i) {
+            probes[i] = random.nextBoolean();
+        }
+        return probes;
+    }
+}
@@ -0,0 +1,367 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The AbstractJacocoGerritMojo holds the parameters shared by all the goals of the plugin, i.e., how to access Gerrit, which
+ * revision the coverage belongs to and where the coverage artifact and the metrics are written to.
+ */
+public abstract class AbstractJacocoGerritMojo extends AbstractMojo {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractJacocoGerritMojo.class);
+
+    // static settings, usually set just once
+
+    /**
+     * The hostname (or IP address) of Gerrit instance.
+     */
+    @Parameter(name = "host", property = "gerrit.host")
+    private String host;
+
+    /**
+     * The port where the REST API of Gerrit is accessible. (e.g., the port where the website runs, such as {@code 8080}).
+     */
+    @Parameter(name = "port", property = "gerrit.port")
+    private Integer port;
+
+    /**
+     * The URI scheme (such as {@code http} or {@code https}).
+     */
+    @Parameter(name = "scheme", property = "gerrit.scheme", defaultValue = "http")
+    private String scheme;
+
+    /**
+     * The username to use to access Gerrit REST API. This user needs enabled HTTP access (<i>Settings</i> -> <i>HTTP
+     * Password</i>
+     * -> <i>Generate HTTP password</i>).
+     */
+    @Parameter(name = "username", property = "gerrit.username")
+    private String username;
+
+    /**
+     * The password for HTTP access of user {@link #username}.
+     */
+    @Parameter(name = "password", property = "gerrit.password")
+    private String password;
+
+    /**
+     * The basepath (contextroot) where Gerrit is accessible at given {@link #host}, {@link #port}.
+     */
+    @Parameter(name = "basePath", property = "gerrit.basePath", defaultValue = "/")
+    private String basePath;
+
+    // dynamic settings, usually changes per each review request; required by the goals that analyze the coverage, the upload
+    // goal takes them from the coverage artifacts
+
+    /**
+     * The project name of the review request.
+     */
+    @Parameter(name = "projectName", property = "gerrit.projectName", defaultValue = "${env.GERRIT_PROJECT}")
+    private String projectName;
+
+    /**
+     * The branch of the review request.
+     */
+    @Parameter(name = "branchName", property = "gerrit.branchName", defaultValue = "${env.GERRIT_BRANCH}")
+    private String branchName = "master";
+
+    /**
+     * The change ID of the review request. (This is the unique id assigned to each review request, usually stored in the commit
+     * message; such as {@code I1d07ca1b78eb2409006c0e8809844ad940708d47})
+     */
+    @Parameter(name = "changeId", property = "gerrit.changeId", defaultValue = "${env.GERRIT_CHANGE_ID}")
+    private String changeId;
+
+    /**
+     * The Git revision ID (hash) in the full format of the git commit to test. (e.g., {@code
+     * 9cb2813f170e5140e4457fe9089cfe678d905fc4})
+     */
+    @Parameter(name = "revisionId", property = "gerrit.revisionId", defaultValue = "${env.GERRIT_PATCHSET_REVISION}")
+    private String revisionId;
+
+    /**
+     * The coverage artifact, i.e., the computed coverage of the revision written by the {@code analyze} goal and read by the
+     * {@code upload} goal. It's a gzipped binary file.
+     */
+    @Parameter(property = "jacoco-gerrit.coverageFile",
+               defaultValue = "${project.build.directory}/jacoco-gerrit/coverage.bin")
+    private File coverageFile;
+
+    // implicit, set by maven
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    // performance tuning
+
+    /**
+     * Set this option to {@code true} to compress the coverage uploaded to Gerrit with gzip ({@code Content-Encoding: gzip}).
+     * The Gerrit server (or a proxy in front of it) must accept compressed requests.
+     */
+    @Parameter(property = "jacoco-gerrit.gzipUpload", defaultValue = "false")
+    private boolean gzipUpload;
+
+    /**
+     * Set this option to {@code false} to buffer the whole coverage before it is sent to Gerrit (so that it's sent with {@code
+     * Content-Length} header). By default, the coverage is streamed with chunked transfer encoding as it's being serialized.
+     */
+    @Parameter(property = "jacoco-gerrit.chunkedUpload", defaultValue = "true")
+    private boolean chunkedUpload = true;
+
+    /**
+     * The timeout (in seconds) of establishing a connection to Gerrit (or to a JaCoCo agent, see {@code agents}).
+     */
+    @Parameter(property = "jacoco-gerrit.connectTimeout", defaultValue = "30")
+    private int connectTimeout = 30;
+
+    /**
+     * The timeout (in seconds) of waiting for data from Gerrit (or from a JaCoCo agent, see {@code agents}), i.e., the maximal
+     * time of inactivity of a connection.
+     */
+    @Parameter(property = "jacoco-gerrit.readTimeout", defaultValue = "300")
+    private int readTimeout = 300;
+
+    /**
+     * The number of times a request to Gerrit is retried if it fails with a server error (e.g., a proxy in front of Gerrit
+     * responds with {@code 502 Bad Gateway}) or, if the request is idempotent, if the connection fails. Set this option to
+     * {@code 0} not to retry the requests.
+     */
+    @Parameter(property = "jacoco-gerrit.retries", defaultValue = "3")
+    private int retries = 3;
+
+    /**
+     * The delay (in milliseconds) before the first retry of a request. The delay doubles with each retry and it's randomized
+     * so that the retries of concurrent requests don't come at the same time.
+     */
+    @Parameter(property = "jacoco-gerrit.retryBackoff", defaultValue = "1000")
+    private long retryBackoff = 1000;
+
+    /**
+     * The maximal number of connections to Gerrit (and of requests in progress) at the same time. A request holds its
+     * connection until its response is read, so a request waits while all the connections are in use. The connections are
+     * kept alive and reused by the subsequent requests.
+     */
+    @Parameter(property = "jacoco-gerrit.maxConnections", defaultValue = "8")
+    private int maxConnections = 8;
+
+    /**
+     * The directory to cache the lists of files modified by the revisions in. Only the revisions given by the full SHA-1 of
+     * their commits are cached; the list of a commit never changes, so the cache can be shared by all the builds running on
+     * the machine.
+     */
+    @Parameter(property = "jacoco-gerrit.fileListCacheDirectory", defaultValue = "${user.home}/.jacoco-gerrit/file-lists")
+    private File fileListCacheDirectory;
+
+    /**
+     * Set this option to {@code false} not to cache the lists of modified files in {@link #fileListCacheDirectory}.
+     */
+    @Parameter(property = "jacoco-gerrit.fileListCache", defaultValue = "true")
+    private boolean fileListCache = true;
+
+    /**
+     * The directory to keep the hashes of the uploaded coverage in. The coverage of a revision isn't uploaded again unless the
+     * coverage of some of its files changed. Only the revisions given by the SHA-1 of their commit are cached.
+     */
+    @Parameter(property = "jacoco-gerrit.uploadCacheDirectory", defaultValue = "${user.home}/.jacoco-gerrit/uploads")
+    private File uploadCacheDirectory;
+
+    /**
+     * Set this option to {@code false} to upload the coverage even if the same coverage was uploaded before (e.g., if the
+     * coverage was removed in Gerrit).
+     */
+    @Parameter(property = "jacoco-gerrit.uploadCache", defaultValue = "true")
+    private boolean uploadCache = true;
+
+    /**
+     * Set this option to {@code true} to skip the upload also if the same coverage was uploaded for another revision of the
+     * change (e.g., for the patchset the revision was rebased from). As the coverage is kept by Gerrit per revision, it's
+     * meant only for the setups that show the coverage of the previous patchsets too.
+     */
+    @Parameter(property = "jacoco-gerrit.uploadCacheAcrossRevisions", defaultValue = "false")
+    private boolean uploadCacheAcrossRevisions;
+
+    // diagnostics
+
+    /**
+     * The file to write the metrics of the run to (the time spent by each phase, the number of analyzed classes, the number of
+     * uploaded bytes, the peak heap usage, etc.) as JSON. The metrics are written even if the run fails.
+     */
+    @Parameter(property = "jacoco-gerrit.metricsFile", defaultValue = "${project.build.directory}/jacoco-gerrit/metrics.json")
+    private File metricsFile;
+
+    /**
+     * Set this option to {@code false} not to write the {@link #metricsFile}.
+     */
+    @Parameter(property = "jacoco-gerrit.metrics", defaultValue = "true")
+    private boolean metrics = true;
+
+    private final Metrics runMetrics = new Metrics();
+
+    private GerritClient gerritClient;
+
+    /**
+     * Fails unless the parameters identifying the revision the coverage belongs to are set. Maven can't check them as they're
+     * not required by all the goals.
+     */
+    protected void checkRevisionParameters() throws MojoFailureException {
+        Utils.requireParameter("projectName", getProjectName());
+        Utils.requireParameter("branchName", getBranchName());
+        Utils.requireParameter("changeId", getChangeId());
+        Utils.requireParameter("revisionId", getRevisionId());
+    }
+
+    /**
+     * Finishes the run started at given time, i.e., closes the {@link #getGerritClient() client} of Gerrit and writes the
+     * metrics. It's meant to be called in the {@code finally} block of {@link #execute()}.
+     */
+    protected void finish(long start) {
+        getMetrics().time("total", start);
+        synchronized (this) {
+            if (gerritClient != null) {
+                gerritClient.close();
+                gerritClient = null;
+            }
+        }
+        writeMetrics();
+    }
+
+    protected void writeMetrics() {
+        File file = getMetricsFile();
+        if (file == null) {
+            return;
+        }
+        try {
+            runMetrics.write(file);
+            LOGGER.info("Metrics of the run written to: {}", file);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write the metrics of the run to: {}", file, e);
+        }
+    }
+
+    public boolean isAnonymous() {
+        return username == null && password == null;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public Integer getPort() {
+        return port;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getBasePath() {
+        return basePath;
+    }
+
+    public String getProjectName() {
+        return projectName;
+    }
+
+    public String getBranchName() {
+        return branchName;
+    }
+
+    public String getChangeId() {
+        return changeId;
+    }
+
+    public String getRevisionId() {
+        return revisionId;
+    }
+
+    public File getCoverageFile() {
+        return coverageFile;
+    }
+
+    public MavenProject getProject() {
+        return project;
+    }
+
+    public boolean isGzipUpload() {
+        return gzipUpload;
+    }
+
+    public boolean isChunkedUpload() {
+        return chunkedUpload;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public long getRetryBackoff() {
+        return retryBackoff;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return the cache of the lists of modified files or {@code null} if the lists are not cached
+     */
+    public FileListCache getFileListCache() {
+        return fileListCache && fileListCacheDirectory != null ? new FileListCache(fileListCacheDirectory) : null;
+    }
+
+    /**
+     * @return the cache of the hashes of the uploaded coverage or {@code null} if the coverage is always uploaded
+     */
+    public UploadCache getUploadCache() {
+        return uploadCache && uploadCacheDirectory != null ? new UploadCache(uploadCacheDirectory) : null;
+    }
+
+    public boolean isUploadCacheAcrossRevisions() {
+        return uploadCacheAcrossRevisions;
+    }
+
+    /**
+     * @return the client of Gerrit shared by the whole run, created on the first call
+     */
+    public synchronized GerritClient getGerritClient() throws MojoFailureException {
+        if (gerritClient == null) {
+            gerritClient = new GerritClient(this);
+        }
+        return gerritClient;
+    }
+
+    /**
+     * @return the file to write the metrics of the run to or {@code null} if the metrics are not written
+     */
+    public File getMetricsFile() {
+        return metrics ? metricsFile : null;
+    }
+
+    public Metrics getMetrics() {
+        return runMetrics;
+    }
+}
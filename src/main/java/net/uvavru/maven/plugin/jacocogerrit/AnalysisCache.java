@@ -0,0 +1,195 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.jacoco.core.JaCoCo;
+import org.jacoco.core.data.ExecutionData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The AnalysisCache keeps the results of the analysis of classes on disk so that the classes that didn't change (neither their
+ * bytecode nor their probes) since the last run don't need to be analyzed again. An entry is keyed by the class id (the CRC64
+ * checksum of the class file as computed by JaCoCo) and by the hash of the probes of the class. The cache is bounded by its
+ * size on disk; the least recently used entries are evicted first.
+ */
+public class AnalysisCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnalysisCache.class);
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String ENTRY_SUFFIX = ".bin";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path directory;
+    private final long maxSize;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * @param directory the directory to keep the entries in; it may be shared by more builds
+     * @param maxSize   the maximal size of the entries in bytes
+     */
+    public AnalysisCache(Path directory, long maxSize) {
+        // entries of different versions of the format or JaCoCo are kept apart
+        this.directory = directory.resolve("v" + FORMAT_VERSION + "-" + JaCoCo.VERSION);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param classId the class id (i.e., CRC64 checksum of the class file)
+     * @param data    the execution data of the class or {@code null} if the class was not executed
+     * @return the key of the analysis result of the class
+     */
+    public String key(long classId, ExecutionData data) {
+        StringBuilder key = new StringBuilder(Long.toHexString(classId)).append('-');
+        if (data == null) {
+            return key.append("none").toString();
+        }
+        boolean[] probes = data.getProbes();
+        byte[] bits = new byte[(probes.length + 7) / 8];
+        for (int i = 0; i < probes.length; ++i) {
+            if (probes[i]) {
+                bits[i / 8] |= 1 << (i % 8);
+            }
+        }
+        MessageDigest digest = sha1();
+        digest.update((byte) probes.length);
+        digest.update((byte) (probes.length >>> 8));
+        digest.update((byte) (probes.length >>> 16));
+        digest.update(bits);
+        for (byte b : digest.digest()) {
+            key.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the cached coverage or {@code null} if there is no (readable) entry for given key
+     */
+    public ClassLineCoverage get(String key) {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            ClassLineCoverage coverage = ClassLineCoverage.read(input);
+            // mark the entry as recently used
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return coverage;
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read analysis cache entry '{}', the class will be analyzed again.", entry, e);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void put(String key, ClassLineCoverage coverage) {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        Path tempFile = null;
+        try {
+            Files.createDirectories(directory);
+            tempFile = Files.createTempFile(directory, key, ".tmp");
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                coverage.write(output);
+            }
+            Files.move(tempFile, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            LOGGER.debug("Analysis cache entry '{}' written concurrently.", entry);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write analysis cache entry '{}'.", entry, e);
+        } finally {
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException e) {
+                    LOGGER.debug("Cannot delete temporary file '{}'.", tempFile, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the size of the cache is below the limit.
+     */
+    public void evict() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> entries = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        long size = 0;
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path entry : (Iterable<Path>) paths::iterator) {
+                if (entry.getFileName().toString().endsWith(ENTRY_SUFFIX)) {
+                    BasicFileAttributes entryAttributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    entries.add(entry);
+                    attributes.add(entryAttributes);
+                    size += entryAttributes.size();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot list analysis cache directory '{}'.", directory, e);
+            return;
+        }
+
+        LOGGER.info("Analysis cache: {} hits, {} misses, {} entries of {} bytes.", hits.get(), misses.get(), entries.size(),
+                    size);
+        if (size <= maxSize) {
+            return;
+        }
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < entries.size(); ++i) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparing(i -> attributes.get(i).lastModifiedTime()));
+
+        int evicted = 0;
+        for (int i = 0; i < order.size() && size > maxSize; ++i) {
+            try {
+                Files.deleteIfExists(entries.get(order.get(i)));
+                size -= attributes.get(order.get(i)).size();
+                ++evicted;
+            } catch (IOException e) {
+                LOGGER.debug("Cannot evict analysis cache entry '{}'.", entries.get(order.get(i)), e);
+            }
+        }
+        LOGGER.debug("Evicted {} analysis cache entries.", evicted);
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported.", e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.IOException;
+
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The AnalyzeMojo computes the coverage of a revision the same way as the {@code jacoco-to-gerrit} goal does but instead of
+ * uploading it to Gerrit, it writes it into the {@link #getCoverageFile() coverage artifact} to be uploaded by the {@code
+ * upload} goal. If the modified files are given by {@link #getChangedFiles()}, Gerrit is not accessed at all.
+ */
+@Mojo(name = "analyze", defaultPhase = LifecyclePhase.INITIALIZE, aggregator = true, requiresDirectInvocation = true)
+public class AnalyzeMojo extends JacocoGerritMojo {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnalyzeMojo.class);
+
+    @Override
+    public void execute() throws MojoFailureException {
+        checkRevisionParameters();
+
+        long start = System.nanoTime();
+        try {
+            PatchCoverageInput patchCoverageInput = new CoveragePipeline(this).computeCoverage();
+            try {
+                new CoverageArtifact(getProjectName(), getBranchName(), getChangeId(), getRevisionId(), patchCoverageInput)
+                        .write(getCoverageFile());
+            } catch (IOException e) {
+                Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                       "Cannot write the coverage artifact: " + getCoverageFile(), e);
+            }
+        } finally {
+            finish(start);
+        }
+
+        LOGGER.info("Test coverage written to: {}", getCoverageFile());
+    }
+}
@@ -0,0 +1,84 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The BatchMojo uploads the coverage of many revisions (e.g., of all the open changes) from a single test run. The exec files
+ * are loaded and the classes are analyzed only once for all the revisions.
+ */
+@Mojo(name = "batch", defaultPhase = LifecyclePhase.INITIALIZE, aggregator = true, requiresDirectInvocation = true,
+      requiresOnline = true)
+public class BatchMojo extends JacocoGerritMojo {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchMojo.class);
+
+    /**
+     * The revisions to upload the coverage of. Each item is either {@code changeId/revisionId} (the project and the branch are
+     * given by {@link #getProjectName()} and {@link #getBranchName()}) or {@code projectName~branchName~changeId/revisionId}.
+     */
+    @Parameter(property = "jacoco-gerrit.revisions")
+    private List<String> revisions;
+
+    /**
+     * The maximal number of revisions communicating with Gerrit (listing the modified files, reading the diffs, uploading the
+     * coverage) at the same time.
+     */
+    @Parameter(property = "jacoco-gerrit.batchConcurrency", defaultValue = "4")
+    private int batchConcurrency = 4;
+
+    @Override
+    public void execute() throws MojoFailureException {
+        List<BatchPipeline.Revision> parsedRevisions = parseRevisions();
+
+        long start = System.nanoTime();
+        int skipped;
+        try {
+            skipped = new BatchPipeline(this).run(parsedRevisions, batchConcurrency);
+        } finally {
+            finish(start);
+        }
+
+        if (skipped == 0) {
+            LOGGER.info("Test coverage of {} revisions successfully posted to Gerrit.", parsedRevisions.size());
+        } else {
+            LOGGER.info("Test coverage of {} revisions successfully posted to Gerrit, coverage of {} revisions unchanged, "
+                                + "upload skipped.", parsedRevisions.size() - skipped, skipped);
+        }
+    }
+
+    private List<BatchPipeline.Revision> parseRevisions() throws MojoFailureException {
+        if (revisions == null || revisions.isEmpty()) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "The parameter 'revisions' is missing.");
+        }
+
+        // the revisions listed more times are uploaded once
+        Set<BatchPipeline.Revision> result = new LinkedHashSet<>();
+        for (String revision : revisions) {
+            String[] changeAndRevision = revision.trim().split("/");
+            String[] change = changeAndRevision[0].split("~");
+            if (changeAndRevision.length != 2 || change.length != 1 && change.length != 3) {
+                Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                       "Revision '" + revision + "' is neither 'changeId/revisionId' nor "
+                                               + "'projectName~branchName~changeId/revisionId'.");
+            }
+            if (change.length == 1) {
+                Utils.requireParameter("projectName", getProjectName());
+                Utils.requireParameter("branchName", getBranchName());
+                result.add(new BatchPipeline.Revision(getProjectName(), getBranchName(), change[0], changeAndRevision[1]));
+            } else {
+                result.add(new BatchPipeline.Revision(change[0], change[1], change[2], changeAndRevision[1]));
+            }
+        }
+        return new ArrayList<>(result);
+    }
+}
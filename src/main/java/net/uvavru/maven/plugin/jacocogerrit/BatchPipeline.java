@@ -0,0 +1,278 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.uvavru.maven.plugin.jacocogerrit.model.CoverageSummary;
+import net.uvavru.maven.plugin.jacocogerrit.model.FileCoverageInput;
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The BatchPipeline computes and uploads the coverage of many revisions at once. The exec files are loaded and the classes
+ * are analyzed just once for all the files modified by any of the revisions; the coverage of each revision is then selected
+ * from the shared result. The communication with Gerrit (listing the modified files, reading the diffs and uploading the
+ * coverage) runs concurrently for several revisions, bounded by the given concurrency.
+ */
+public class BatchPipeline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchPipeline.class);
+
+    private final JacocoGerritMojo mojo;
+    private final SourceFilesMapper sourceFilesMapper;
+    private final JacocoReader jacocoReader;
+    private final ExecDataLoader execDataLoader;
+
+    public BatchPipeline(JacocoGerritMojo mojo) {
+        this.mojo = mojo;
+        sourceFilesMapper = new SourceFilesMapper(mojo);
+        jacocoReader = new JacocoReader(mojo);
+        execDataLoader = new ExecDataLoader(mojo);
+    }
+
+    /**
+     * Computes and uploads the coverage of given revisions. A failure of a revision doesn't stop the others; the failed
+     * revisions are reported at the end.
+     *
+     * @param revisionList the revisions to upload the coverage of; a revision listed more times is uploaded once
+     * @param concurrency  the maximal number of revisions communicating with Gerrit at the same time
+     * @return the number of revisions whose upload was skipped as the same coverage was uploaded before
+     */
+    public int run(List<Revision> revisionList, int concurrency) throws MojoFailureException {
+        Set<Revision> revisions = new LinkedHashSet<>(revisionList);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(mojo.getTimeout());
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, concurrency), runnable -> {
+            Thread thread = new Thread(runnable, "jacoco-gerrit-batch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<Revision, Throwable> failures = new LinkedHashMap<>();
+        int skipped = 0;
+        try {
+            Map<Revision, GerritFacade> facades = new LinkedHashMap<>();
+            Map<Revision, CompletableFuture<Map<String, Map<String, String>>>> fileLists = new LinkedHashMap<>();
+            for (Revision revision : revisions) {
+                try {
+                    GerritFacade gerritFacade = new GerritFacade(mojo, revision.getProjectName(), revision.getBranchName(),
+                                                                 revision.getChangeId(), revision.getRevisionId());
+                    facades.put(revision, gerritFacade);
+                    // the modified files are mapped as they are being received
+                    fileLists.put(revision, async(() -> {
+                        SourceFilesMapper.Mapping mapping = sourceFilesMapper.newMapping();
+                        gerritFacade.listFiles(mapping);
+                        return mapping.build();
+                    }, executor));
+                } catch (MojoFailureException e) {
+                    failures.put(revision, e);
+                }
+            }
+
+            // the source roots are indexed and the exec files are resolved while the modified files are listed
+            long start = System.nanoTime();
+            sourceFilesMapper.getSourceRootIndex();
+            List<File> execFiles = execDataLoader.resolveExecFiles();
+            mojo.getMetrics().time("execResolve", start);
+
+            start = System.nanoTime();
+            Map<Revision, Map<String, Map<String, String>>> mappings = new LinkedHashMap<>();
+            Map<String, Map<String, String>> sharedMapping = new TreeMap<>();
+            for (Map.Entry<Revision, CompletableFuture<Map<String, Map<String, String>>>> fileList : fileLists.entrySet()) {
+                try {
+                    Map<String, Map<String, String>> mapping = await(fileList.getValue(), deadline);
+                    mappings.put(fileList.getKey(), mapping);
+                    mapping.forEach((dirToScan, stringMap) -> sharedMapping
+                            .computeIfAbsent(dirToScan, dir -> new HashMap<>()).putAll(stringMap));
+                } catch (MojoFailureException e) {
+                    failures.put(fileList.getKey(), e);
+                }
+            }
+            mojo.getMetrics().time("mapping", start);
+
+            LOGGER.info("Reading JaCoCo coverage data.");
+            start = System.nanoTime();
+            ExecutionDataStore executionData = jacocoReader.loadExecutionData(execFiles,
+                                                                              mojo.isFilterExecData() ? sharedMapping : null);
+            mojo.getMetrics().time("execLoad", start);
+
+            LOGGER.info("Analyzing classes of {} revisions.", mappings.size());
+            start = System.nanoTime();
+            PatchCoverageInput sharedCoverage = jacocoReader.readCoverage(sharedMapping, executionData, null);
+            mojo.getMetrics().time("analysis", start);
+
+            Map<Revision, CompletableFuture<Boolean>> uploads = new LinkedHashMap<>();
+            mappings.forEach((revision, mapping) -> uploads.put(revision, async(
+                    () -> upload(revision, facades.get(revision), mapping, sharedCoverage), executor)));
+            for (Map.Entry<Revision, CompletableFuture<Boolean>> upload : uploads.entrySet()) {
+                try {
+                    if (!await(upload.getValue(), deadline)) {
+                        ++skipped;
+                    }
+                } catch (MojoFailureException e) {
+                    failures.put(upload.getKey(), e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        mojo.getMetrics().increment("revisions.uploaded", revisions.size() - failures.size() - skipped);
+        mojo.getMetrics().increment("revisions.failed", failures.size());
+        mojo.getMetrics().increment("revisions.skipped", skipped);
+        if (!failures.isEmpty()) {
+            failures.forEach((revision, e) -> LOGGER.error("Coverage of revision '{}' not uploaded: {}", revision,
+                                                           e.getMessage()));
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                   "Coverage of " + failures.size() + " out of " + revisions.size()
+                                           + " revisions not uploaded: " + failures.keySet());
+        }
+        return skipped;
+    }
+
+    private boolean upload(Revision revision,
+                           GerritFacade gerritFacade,
+                           Map<String, Map<String, String>> mapping,
+                           PatchCoverageInput sharedCoverage) throws MojoFailureException {
+        Set<String> sourceFiles = new TreeSet<>();
+        mapping.values().forEach(stringMap -> sourceFiles.addAll(stringMap.values()));
+
+        Map<String, LineRanges> changedLines = mojo.isChangedLinesOnly() ? gerritFacade.listChangedLines(sourceFiles) : null;
+        PatchCoverageInput patchCoverageInput = select(sharedCoverage, sourceFiles, changedLines);
+        LOGGER.info("Coverage of the {} of revision '{}': {}", mojo.isChangedLinesOnly() ? "changed lines" : "modified files",
+                    revision, CoverageSummary.of(patchCoverageInput));
+        return gerritFacade.setCoverage(patchCoverageInput);
+    }
+
+    /**
+     * @return the coverage of given files (and lines, if {@code changedLines} is not {@code null}) from given coverage
+     */
+    private static PatchCoverageInput select(PatchCoverageInput coverage,
+                                             Set<String> sourceFiles,
+                                             Map<String, LineRanges> changedLines) {
+        PatchCoverageInput result = new PatchCoverageInput();
+        for (String sourceFile : sourceFiles) {
+            FileCoverageInput fileCoverage = coverage.getCoverage().get(sourceFile);
+            LineRanges ranges = changedLines == null ? null : changedLines.get(sourceFile);
+            if (fileCoverage == null || changedLines != null && ranges == null) {
+                continue;
+            }
+            for (int i = 0; i < fileCoverage.size(); ++i) {
+                int line = fileCoverage.getLine(i);
+                if (ranges == null || ranges.contains(line)) {
+                    result.setLineCoverage(sourceFile, line, fileCoverage.getHits(i), fileCoverage.getConditions(i),
+                                           fileCoverage.getCoveredConditions(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static <T> CompletableFuture<T> async(Callable<T> callable, ExecutorService executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return callable.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static <T> T await(CompletableFuture<T> future, long deadline) throws MojoFailureException {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Timed out while communicating with Gerrit.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Interrupted while communicating with Gerrit.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause()
+                    : e.getCause();
+            if (cause instanceof MojoFailureException) {
+                throw (MojoFailureException) cause;
+            }
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, String.valueOf(cause.getMessage()), cause);
+        }
+        return null;
+    }
+
+    /**
+     * The Revision identifies a patchset in Gerrit.
+     */
+    public static class Revision {
+        private final String projectName;
+        private final String branchName;
+        private final String changeId;
+        private final String revisionId;
+
+        public Revision(String projectName, String branchName, String changeId, String revisionId) {
+            this.projectName = projectName;
+            this.branchName = branchName;
+            this.changeId = changeId;
+            this.revisionId = revisionId;
+        }
+
+        public String getProjectName() {
+            return projectName;
+        }
+
+        public String getBranchName() {
+            return branchName;
+        }
+
+        public String getChangeId() {
+            return changeId;
+        }
+
+        public String getRevisionId() {
+            return revisionId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Revision revision = (Revision) o;
+            return Objects.equals(projectName, revision.projectName) && Objects.equals(branchName, revision.branchName)
+                    && Objects.equals(changeId, revision.changeId) && Objects.equals(revisionId, revision.revisionId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(projectName, branchName, changeId, revisionId);
+        }
+
+        @Override
+        public String toString() {
+            return projectName + "~" + branchName + "~" + changeId + "/" + revisionId;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The ClassIndex maps the source files to the class files compiled from them. It's built in a single pass over an output
+ * directory (or an archive) that reads just the name and the {@code SourceFile} attribute of each class file, so it finds all
+ * the classes of a source file, including its secondary top level classes, as well as the classes of sources that aren't named
+ * after the class (such as Kotlin file facades). The classes without the {@code SourceFile} attribute (i.e., compiled without
+ * debug information) are mapped by the name of their top level class.
+ * <p>
+ * A source file is expected in the directory of its package. As Kotlin or Groovy sources don't have to be located there, a
+ * source file that isn't found this way is looked up by its name in all the packages, see {@link #lookup(String, Predicate)}.
+ * <p>
+ * The index can be stored on disk; it's then updated incrementally, i.e., only the class files whose timestamp (or CRC, in
+ * case of an archive) or size changed since the index was stored are read again.
+ */
+public class ClassIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClassIndex.class);
+    private static final int MAGIC = 0x4A474349;
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String JAVA_SUFFIX = ".java";
+    private static final String META_INF = "META-INF/";
+
+    private final Path root;
+    private final Path storeFile;
+    private final Map<String, Entry> entries;
+    // Map<SourcePathRelativeToSourceRoot, List<VmClassName>>
+    private final Map<String, List<String>> classesBySource = new HashMap<>();
+    // Map<SourceFileName, List<SourcePathRelativeToSourceRoot>>
+    private final Map<String, List<String>> sourcesByName = new HashMap<>();
+    private final int read;
+
+    private ClassIndex(Path root, Path storeFile, Map<String, Entry> entries, int read) {
+        this.root = root;
+        this.storeFile = storeFile;
+        this.entries = entries;
+        entries.values().forEach(entry -> classesBySource.computeIfAbsent(entry.sourcePath, path -> new ArrayList<>())
+                .add(entry.className));
+        classesBySource.values().forEach(Collections::sort);
+        classesBySource.keySet().forEach(sourcePath -> sourcesByName
+                .computeIfAbsent(sourcePath.substring(sourcePath.lastIndexOf('/') + 1), name -> new ArrayList<>())
+                .add(sourcePath));
+        this.read = read;
+    }
+
+    /**
+     * Indexes the class files of given output directory or archive.
+     *
+     * @param classesLocation the output directory or the archive of a module; it doesn't have to exist
+     * @param storeDirectory  the directory to store the index in so that it can be updated incrementally by the next run; or
+     *                        {@code null} not to store it
+     */
+    public static ClassIndex of(File classesLocation, File storeDirectory) throws IOException {
+        Path root = classesLocation.toPath().toAbsolutePath();
+        Path storeFile = storeDirectory == null
+                ? null
+                : storeDirectory.toPath().toAbsolutePath().resolve(Utils.sha1Hex(root.toString()) + ".bin");
+        return build(root, storeFile, storeFile == null ? Collections.emptyMap() : load(storeFile, root));
+    }
+
+    /**
+     * Updates the index to the current state of the class files, e.g., after the module was rebuilt. Only the class files
+     * whose timestamp (or CRC) or size changed since this index was built are read. This index is left intact.
+     *
+     * @return the updated index
+     */
+    public ClassIndex update() throws IOException {
+        return build(root, storeFile, entries);
+    }
+
+    private static ClassIndex build(Path root, Path storeFile, Map<String, Entry> previous) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        int read;
+        if (Files.isDirectory(root)) {
+            read = indexDirectory(root, previous, entries);
+        } else if (Files.isRegularFile(root)) {
+            read = indexArchive(root, previous, entries);
+        } else {
+            read = 0;
+        }
+
+        if (storeFile != null && (read > 0 || entries.size() != previous.size())) {
+            store(storeFile, root, entries);
+        }
+        LOGGER.debug("Indexed {} class files in '{}', {} of them read.", entries.size(), root, read);
+        return new ClassIndex(root, storeFile, entries, read);
+    }
+
+    /**
+     * @return the number of class files read, i.e., not found in {@code previous}
+     */
+    private static int indexDirectory(Path root, Map<String, Entry> previous, Map<String, Entry> entries) throws IOException {
+        int[] read = new int[1];
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String fileName = file.getFileName().toString();
+                if (!attributes.isRegularFile() || !fileName.endsWith(CLASS_SUFFIX)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String relativePath = root.relativize(file).toString().replace(File.separatorChar, '/');
+                long lastModified = attributes.lastModifiedTime().toMillis();
+                Entry entry = previous.get(relativePath);
+                if (entry == null || entry.stamp != lastModified || entry.size != attributes.size()) {
+                    entry = readEntry(relativePath, Files.readAllBytes(file), lastModified, attributes.size());
+                    ++read[0];
+                }
+                entries.put(relativePath, entry);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return read[0];
+    }
+
+    /**
+     * Indexes the class files of an archive. The entries are listed from the central directory of the archive and only the
+     * entries whose CRC or size changed are decompressed.
+     *
+     * @return the number of class files read, i.e., not found in {@code previous}
+     */
+    private static int indexArchive(Path root, Map<String, Entry> previous, Map<String, Entry> entries) throws IOException {
+        int read = 0;
+        try (ZipFile archive = new ZipFile(root.toFile())) {
+            Enumeration<? extends ZipEntry> zipEntries = archive.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                String relativePath = zipEntry.getName();
+                // the classes of other Java versions of multi-release archives are not analyzed
+                if (zipEntry.isDirectory() || !relativePath.endsWith(CLASS_SUFFIX) || relativePath.startsWith(META_INF)) {
+                    continue;
+                }
+                Entry entry = previous.get(relativePath);
+                if (entry == null || entry.stamp != zipEntry.getCrc() || entry.size != zipEntry.getSize()) {
+                    entry = readEntry(relativePath, Utils.readEntry(archive, zipEntry), zipEntry.getCrc(), zipEntry.getSize());
+                    ++read;
+                }
+                entries.put(relativePath, entry);
+            }
+        }
+        return read;
+    }
+
+    /**
+     * @param sourcePath the path of a source file relative to its source root, such as {@code pkg/Foo.java}
+     * @return the VM names of the classes compiled from given source file, such as {@code pkg/Foo} and {@code pkg/Foo$1}
+     */
+    public List<String> lookup(String sourcePath) {
+        return lookup(sourcePath, path -> false);
+    }
+
+    /**
+     * Looks up the classes compiled from given source file. If there are no classes of the source file in the package given by
+     * its directory, the classes of the source files of the same name in the other packages are taken, except for the ones
+     * whose own source file (in the directory of their package) exists. If there are such classes in more packages, the
+     * packages ending with the most directories of the source file are taken; if it's still ambiguous, no classes are returned.
+     *
+     * @param sourcePath   the path of a source file relative to its source root, such as {@code ui/Foo.kt}
+     * @param sourceExists tells whether a source file of given path relative to the source roots of the module exists
+     * @return the VM names of the classes compiled from given source file, such as {@code com/example/ui/FooKt}
+     */
+    public List<String> lookup(String sourcePath, Predicate<String> sourceExists) {
+        List<String> classNames = classesBySource.get(sourcePath);
+        if (classNames != null) {
+            return classNames;
+        }
+
+        int nameStart = sourcePath.lastIndexOf('/') + 1;
+        List<String> directories = directories(sourcePath);
+        int bestScore = -1;
+        List<String> best = new ArrayList<>();
+        for (String candidate : sourcesByName.getOrDefault(sourcePath.substring(nameStart), Collections.emptyList())) {
+            if (sourceExists.test(candidate)) {
+                continue;
+            }
+            int score = commonTrailingDirectories(directories, directories(candidate));
+            if (score > bestScore) {
+                bestScore = score;
+                best.clear();
+            }
+            if (score == bestScore) {
+                best.add(candidate);
+            }
+        }
+        if (best.size() > 1) {
+            Collections.sort(best);
+            LOGGER.warn("Source file '{}' may be compiled to the classes of any of sources {} of '{}', none of them is mapped.",
+                        sourcePath, best, root);
+            return Collections.emptyList();
+        }
+        return best.isEmpty() ? Collections.emptyList() : classesBySource.get(best.get(0));
+    }
+
+    private static List<String> directories(String path) {
+        int nameStart = path.lastIndexOf('/') + 1;
+        return nameStart == 0 ? Collections.emptyList() : Arrays.asList(path.substring(0, nameStart - 1).split("/"));
+    }
+
+    private static int commonTrailingDirectories(List<String> left, List<String> right) {
+        int common = 0;
+        while (common < left.size() && common < right.size()
+                && left.get(left.size() - 1 - common).equals(right.get(right.size() - 1 - common))) {
+            ++common;
+        }
+        return common;
+    }
+
+    /**
+     * @return the number of indexed class files
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of class files read while building the index, i.e., the ones not found in the stored index
+     */
+    public int getRead() {
+        return read;
+    }
+
+    private static Entry readEntry(String relativePath, byte[] classBytes, long stamp, long size) {
+        String[] nameAndSource = new String[2];
+        try {
+            new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM5) {
+                @Override
+                public void visit(int version,
+                                  int access,
+                                  String name,
+                                  String signature,
+                                  String superName,
+                                  String[] interfaces) {
+                    nameAndSource[0] = name;
+                }
+
+                @Override
+                public void visitSource(String source, String debug) {
+                    nameAndSource[1] = source;
+                }
+            }, ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES);
+        } catch (RuntimeException e) {
+            // e.g., a class file of a newer version than supported; it's mapped by its file name
+            LOGGER.debug("Cannot read the header of class file '{}', mapping it by its name.", relativePath, e);
+            nameAndSource[0] = relativePath.substring(0, relativePath.length() - CLASS_SUFFIX.length());
+            nameAndSource[1] = null;
+        }
+
+        String className = nameAndSource[0];
+        int packageEnd = className.lastIndexOf('/') + 1;
+        String sourcePath;
+        if (nameAndSource[1] != null) {
+            sourcePath = className.substring(0, packageEnd) + nameAndSource[1];
+        } else {
+            int innerClassSeparator = className.indexOf('$', packageEnd);
+            sourcePath = (innerClassSeparator < 0 ? className : className.substring(0, innerClassSeparator)) + JAVA_SUFFIX;
+        }
+        return new Entry(relativePath, className, sourcePath, stamp, size);
+    }
+
+    private static Map<String, Entry> load(Path storeFile, Path root) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(storeFile),
+                                                                                 BUFFER_SIZE))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION || !root.toString().equals(input.readUTF())) {
+                LOGGER.debug("Ignoring incompatible class index: {}", storeFile);
+                return Collections.emptyMap();
+            }
+            int count = input.readInt();
+            Map<String, Entry> entries = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; ++i) {
+                Entry entry = new Entry(input.readUTF(), input.readUTF(), input.readUTF(), input.readLong(), input.readLong());
+                entries.put(entry.relativePath, entry);
+            }
+            return entries;
+        } catch (NoSuchFileException e) {
+            return Collections.emptyMap();
+        } catch (IOException e) {
+            LOGGER.debug("Cannot read class index: {}", storeFile, e);
+            return Collections.emptyMap();
+        }
+    }
+
+    private static void store(Path storeFile, Path root, Map<String, Entry> entries) throws IOException {
+        Utils.writeAtomically(storeFile, stream -> {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                output.writeUTF(root.toString());
+                output.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    output.writeUTF(entry.relativePath);
+                    output.writeUTF(entry.className);
+                    output.writeUTF(entry.sourcePath);
+                    output.writeLong(entry.stamp);
+                    output.writeLong(entry.size);
+                }
+            }
+        });
+    }
+
+    /**
+     * The Entry is the header of a class file.
+     */
+    private static class Entry {
+        private final String relativePath;
+        private final String className;
+        private final String sourcePath;
+        // the timestamp of a class file or the CRC of an archive entry
+        private final long stamp;
+        private final long size;
+
+        Entry(String relativePath, String className, String sourcePath, long stamp, long size) {
+            this.relativePath = relativePath;
+            this.className = className;
+            this.sourcePath = sourcePath;
+            this.stamp = stamp;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.jacoco.core.analysis.IClassCoverage;
+import org.jacoco.core.analysis.ICounter;
+import org.jacoco.core.analysis.ILine;
+
+/**
+ * The ClassLineCoverage is the result of the analysis of a single class reduced to what is reported to Gerrit. Only the lines
+ * that contain code (i.e., their status is not {@link ICounter#EMPTY}) are kept.
+ */
+public class ClassLineCoverage {
+
+    private static final int LINE = 0;
+    private static final int STATUS = 1;
+    private static final int COVERED_INSTRUCTIONS = 2;
+    private static final int TOTAL_BRANCHES = 3;
+    private static final int COVERED_BRANCHES = 4;
+    private static final int STRIDE = 5;
+
+    private final String name;
+    private final String sourceFileName;
+    private final int[] data;
+
+    private ClassLineCoverage(String name, String sourceFileName, int[] data) {
+        this.name = name;
+        this.sourceFileName = sourceFileName;
+        this.data = data;
+    }
+
+    public static ClassLineCoverage of(IClassCoverage coverage) {
+        int[] data = new int[Math.max(0, coverage.getLastLine() - coverage.getFirstLine() + 1) * STRIDE];
+        int offset = 0;
+        for (int line = coverage.getFirstLine(); line <= coverage.getLastLine(); ++line) {
+            ILine coverageLine = coverage.getLine(line);
+            if (coverageLine.getStatus() == ICounter.EMPTY) {
+                // line was not analyzed
+                continue;
+            }
+            data[offset + LINE] = line;
+            data[offset + STATUS] = coverageLine.getStatus();
+            data[offset + COVERED_INSTRUCTIONS] = coverageLine.getInstructionCounter().getCoveredCount();
+            data[offset + TOTAL_BRANCHES] = coverageLine.getBranchCounter().getTotalCount();
+            data[offset + COVERED_BRANCHES] = coverageLine.getBranchCounter().getCoveredCount();
+            offset += STRIDE;
+        }
+        return new ClassLineCoverage(coverage.getName(), coverage.getSourceFileName(), Arrays.copyOf(data, offset));
+    }
+
+    public static ClassLineCoverage read(DataInput input) throws IOException {
+        String name = input.readUTF();
+        String sourceFileName = input.readBoolean() ? input.readUTF() : null;
+        int[] data = new int[input.readInt() * STRIDE];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = input.readInt();
+        }
+        return new ClassLineCoverage(name, sourceFileName, data);
+    }
+
+    public void write(DataOutput output) throws IOException {
+        output.writeUTF(name);
+        output.writeBoolean(sourceFileName != null);
+        if (sourceFileName != null) {
+            output.writeUTF(sourceFileName);
+        }
+        output.writeInt(size());
+        for (int value : data) {
+            output.writeInt(value);
+        }
+    }
+
+    /**
+     * @return the VM name of the class
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getSourceFileName() {
+        return sourceFileName;
+    }
+
+    /**
+     * @return the number of lines with code
+     */
+    public int size() {
+        return data.length / STRIDE;
+    }
+
+    public int getLine(int index) {
+        return data[index * STRIDE + LINE];
+    }
+
+    /**
+     * @return one of {@link ICounter#NOT_COVERED}, {@link ICounter#PARTLY_COVERED} or {@link ICounter#FULLY_COVERED}
+     */
+    public int getStatus(int index) {
+        return data[index * STRIDE + STATUS];
+    }
+
+    public int getCoveredInstructions(int index) {
+        return data[index * STRIDE + COVERED_INSTRUCTIONS];
+    }
+
+    public int getTotalBranches(int index) {
+        return data[index * STRIDE + TOTAL_BRANCHES];
+    }
+
+    public int getCoveredBranches(int index) {
+        return data[index * STRIDE + COVERED_BRANCHES];
+    }
+}
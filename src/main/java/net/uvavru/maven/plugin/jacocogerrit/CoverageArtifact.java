@@ -0,0 +1,129 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.uvavru.maven.plugin.jacocogerrit.model.FileCoverageInput;
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+/**
+ * The CoverageArtifact is the coverage of a revision computed by the {@code analyze} goal, stored so that it can be uploaded
+ * to Gerrit later (and elsewhere) by the {@code upload} goal. It's a gzipped binary file consisting of the identification of
+ * the revision followed by the line coverage of each file.
+ */
+public class CoverageArtifact {
+    private static final int MAGIC = 0x4A474356;
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String projectName;
+    private final String branchName;
+    private final String changeId;
+    private final String revisionId;
+    private final PatchCoverageInput coverage;
+
+    public CoverageArtifact(String projectName,
+                            String branchName,
+                            String changeId,
+                            String revisionId,
+                            PatchCoverageInput coverage) {
+        this.projectName = projectName;
+        this.branchName = branchName;
+        this.changeId = changeId;
+        this.revisionId = revisionId;
+        this.coverage = coverage;
+    }
+
+    public String getProjectName() {
+        return projectName;
+    }
+
+    public String getBranchName() {
+        return branchName;
+    }
+
+    public String getChangeId() {
+        return changeId;
+    }
+
+    public String getRevisionId() {
+        return revisionId;
+    }
+
+    public PatchCoverageInput getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * @return the identification of the revision the coverage belongs to; artifacts with the same one can be merged
+     */
+    public String getRevision() {
+        return projectName + "~" + branchName + "~" + changeId + "/" + revisionId;
+    }
+
+    /**
+     * Writes the artifact into given file. The file is replaced atomically so that a reader never sees it partially written.
+     */
+    public void write(File file) throws IOException {
+        Utils.writeAtomically(file.toPath(), stream -> {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(stream, BUFFER_SIZE), BUFFER_SIZE))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                output.writeUTF(projectName);
+                output.writeUTF(branchName);
+                output.writeUTF(changeId);
+                output.writeUTF(revisionId);
+
+                output.writeInt(coverage.getCoverage().size());
+                for (Map.Entry<String, FileCoverageInput> fileCoverage : coverage.getCoverage().entrySet()) {
+                    FileCoverageInput lines = fileCoverage.getValue();
+                    output.writeUTF(fileCoverage.getKey());
+                    output.writeInt(lines.size());
+                    for (int i = 0; i < lines.size(); ++i) {
+                        output.writeInt(lines.getLine(i));
+                        output.writeInt(lines.getHits(i));
+                        output.writeInt(lines.getConditions(i));
+                        output.writeInt(lines.getCoveredConditions(i));
+                    }
+                }
+            }
+        });
+    }
+
+    public static CoverageArtifact read(File file) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE), BUFFER_SIZE))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a coverage artifact: " + file);
+            }
+            int formatVersion = input.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported version " + formatVersion + " of coverage artifact: " + file);
+            }
+            String projectName = input.readUTF();
+            String branchName = input.readUTF();
+            String changeId = input.readUTF();
+            String revisionId = input.readUTF();
+
+            PatchCoverageInput coverage = new PatchCoverageInput();
+            int files = input.readInt();
+            for (int fileIndex = 0; fileIndex < files; ++fileIndex) {
+                String filePath = input.readUTF();
+                int lines = input.readInt();
+                for (int i = 0; i < lines; ++i) {
+                    coverage.setLineCoverage(filePath, input.readInt(), input.readInt(), input.readInt(), input.readInt());
+                }
+            }
+            return new CoverageArtifact(projectName, branchName, changeId, revisionId, coverage);
+        }
+    }
+}
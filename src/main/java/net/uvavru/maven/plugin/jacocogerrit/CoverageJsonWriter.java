@@ -0,0 +1,39 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import net.uvavru.maven.plugin.jacocogerrit.model.FileCoverageInput;
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * The CoverageJsonWriter writes the coverage JSON straight from the coverage model to a stream using the Jackson streaming
+ * API, i.e., without building the whole body in memory.
+ */
+public class CoverageJsonWriter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private final FileCoverageInput.Serializer fileCoverageSerializer = new FileCoverageInput.Serializer();
+
+    /**
+     * Writes given coverage to given stream. The stream is flushed but not closed.
+     */
+    public void write(PatchCoverageInput patchCoverageInput, OutputStream outputStream) throws IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream)) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("coverage");
+            for (Map.Entry<String, FileCoverageInput> fileCoverage : patchCoverageInput.getCoverage().entrySet()) {
+                generator.writeFieldName(fileCoverage.getKey());
+                fileCoverageSerializer.serialize(fileCoverage.getValue(), generator, null);
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import net.uvavru.maven.plugin.jacocogerrit.model.CoverageSummary;
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The CoveragePipeline computes the coverage of a patchset and uploads it to Gerrit. The phases that don't depend on each
+ * other run concurrently, e.g., the source roots are indexed and the exec files are resolved and read ahead while the list of
+ * modified files is being fetched from Gerrit (and mapped to the classes as it's being received), and the diffs of the files
+ * are fetched while the exec files are loaded and the classes are analyzed.
+ */
+public class CoveragePipeline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CoveragePipeline.class);
+
+    private final JacocoGerritMojo mojo;
+    private GerritFacade gerritFacade;
+    private final SourceFilesMapper sourceFilesMapper;
+    private final JacocoReader jacocoReader;
+    private final ExecDataLoader execDataLoader;
+
+    // the phases that are running, kept to report which of them didn't finish in time
+    private final Map<String, CompletableFuture<?>> phases = new LinkedHashMap<>();
+
+    public CoveragePipeline(JacocoGerritMojo mojo) {
+        this.mojo = mojo;
+        sourceFilesMapper = new SourceFilesMapper(mojo);
+        jacocoReader = new JacocoReader(mojo);
+        execDataLoader = new ExecDataLoader(mojo);
+    }
+
+    /**
+     * @return {@code true} if the coverage was uploaded, {@code false} if the upload was skipped as the same coverage was
+     * uploaded before
+     */
+    public boolean run() throws MojoFailureException {
+        PatchCoverageInput patchCoverageInput = computeCoverage();
+
+        LOGGER.info("Uploading the coverage to Gerrit.");
+        return gerritFacade().setCoverage(patchCoverageInput);
+    }
+
+    public PatchCoverageInput computeCoverage() throws MojoFailureException {
+        ExecutorService executor = Executors.newCachedThreadPool(daemonThreadFactory());
+        try {
+            phase("indexing source roots", "sourceRootIndex", executor, sourceFilesMapper::getSourceRootIndex);
+            CompletableFuture<List<File>> execFiles = phase("resolving JaCoCo exec files", "execResolve", executor, () -> {
+                List<File> files = execDataLoader.resolveExecFiles();
+                if (mojo.isFilterExecData()) {
+                    // the exec files can be loaded only after the mapping is calculated, read them ahead at least
+                    execDataLoader.prefetch(files);
+                }
+                return files;
+            });
+
+            // the files listed by Gerrit are mapped as they are being received; the mapping waits for the source root index only
+            // once the first file is received
+            CompletableFuture<Map<String, Map<String, String>>> mapping = phase(
+                    "mapping source files to compiled classes", "mapping", executor, () -> {
+                        LOGGER.info("Mapping source files modified in the patchset to compiled classes.");
+                        SourceFilesMapper.Mapping filesMapping = sourceFilesMapper.newMapping();
+                        if (mojo.getChangedFiles() != null && !mojo.getChangedFiles().isEmpty()) {
+                            mojo.getChangedFiles().forEach(filesMapping);
+                        } else {
+                            gerritFacade().listFiles(filesMapping);
+                        }
+                        return filesMapping.build();
+                    });
+
+            CompletableFuture<ExecutionDataStore> executionData = phase(
+                    "reading JaCoCo exec files", "execLoad", executor, () -> {
+                        LOGGER.info("Reading JaCoCo coverage data.");
+                        return jacocoReader.loadExecutionData(execFiles.join(),
+                                                              mojo.isFilterExecData() ? mapping.join() : null);
+                    }, mojo.isFilterExecData() ? CompletableFuture.allOf(execFiles, mapping) : execFiles);
+
+            CompletableFuture<Map<String, LineRanges>> changedLines = !mojo.isChangedLinesOnly()
+                    ? CompletableFuture.completedFuture(null)
+                    : phase("reading lines changed in the patchset", "gerrit.listChangedLines", executor, () -> {
+                        LOGGER.info("Reading lines changed in the patchset.");
+                        Set<String> sourceFiles = new TreeSet<>();
+                        mapping.join().values().forEach(stringMap -> sourceFiles.addAll(stringMap.values()));
+                        return gerritFacade().listChangedLines(sourceFiles);
+                    }, mapping);
+
+            CompletableFuture<PatchCoverageInput> coverage = phase(
+                    "analyzing classes", "analysis", executor, () -> {
+                        LOGGER.info("Analyzing classes.");
+                        return jacocoReader.readCoverage(mapping.join(), executionData.join(), changedLines.join());
+                    }, CompletableFuture.allOf(mapping, executionData, changedLines));
+
+            PatchCoverageInput patchCoverageInput = await(coverage);
+            LOGGER.info("Coverage of the {}: {}", mojo.isChangedLinesOnly() ? "changed lines" : "modified files",
+                        CoverageSummary.of(patchCoverageInput));
+            return patchCoverageInput;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the facade of the revision; it's created on demand as the coverage can be computed without access to Gerrit
+     */
+    private synchronized GerritFacade gerritFacade() throws MojoFailureException {
+        if (gerritFacade == null) {
+            gerritFacade = new GerritFacade(mojo);
+        }
+        return gerritFacade;
+    }
+
+    /**
+     * Starts a phase as soon as all its dependencies are completed.
+     *
+     * @param name  the description of the phase
+     * @param timer the name of the timer of the phase in the {@link Metrics}
+     */
+    private <T> CompletableFuture<T> phase(String name,
+                                           String timer,
+                                           ExecutorService executor,
+                                           Callable<T> callable,
+                                           CompletableFuture<?>... dependencies) {
+        CompletableFuture<T> phase = CompletableFuture.allOf(dependencies).thenApplyAsync(ignored -> {
+            long start = System.nanoTime();
+            try {
+                return callable.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                mojo.getMetrics().time(timer, start);
+                LOGGER.debug("Phase '{}' took {} ms.", name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }, executor);
+        phases.put(name, phase);
+        return phase;
+    }
+
+    private <T> T await(CompletableFuture<T> future) throws MojoFailureException {
+        try {
+            return future.get(mojo.getTimeout(), TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            String unfinished = phases.entrySet().stream()
+                    .filter(phase -> !phase.getValue().isDone())
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.joining(", "));
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                   "Timed out after " + mojo.getTimeout() + " seconds while " + unfinished + ".", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Interrupted while computing the coverage.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause()
+                    : e.getCause();
+            if (cause instanceof MojoFailureException) {
+                throw (MojoFailureException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Computing the coverage failed.", cause);
+        }
+        return null;
+    }
+
+    private static ThreadFactory daemonThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "jacoco-gerrit-pipeline-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,484 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.uvavru.maven.plugin.jacocogerrit.model.CoverageSummary;
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataReader;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.runtime.RemoteControlReader;
+import org.jacoco.core.runtime.RemoteControlWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The CoverageService is a long-running server that computes and uploads the coverage of revisions on request. It keeps the
+ * state that a run of the plugin would otherwise build from scratch warm between the requests: the index of the source roots,
+ * the indexes of the class files (only the changed class files are read again before each request), the analysis cache and
+ * the client of Gerrit with its pool of connections.
+ * <p>
+ * The execution data is collected in memory from two sources:
+ * <ul>
+ * <li>JaCoCo agents running in {@code tcpclient} mode connect to the agent port; the service requests a dump from all the
+ * connected agents before computing the coverage and also keeps the data the agents send when their JVMs exit,</li>
+ * <li>CI jobs post exec files to the control port.</li>
+ * </ul>
+ * The control port accepts the following HTTP requests:
+ * <ul>
+ * <li>{@code POST /coverage?changeId=...&revisionId=...[&projectName=...][&branchName=...][&dump=false][&reset=true]}
+ * computes and uploads the coverage of a revision; the project and the branch default to the parameters of the mojo,</li>
+ * <li>{@code POST /exec} merges the exec file in the body of the request into the collected execution data,</li>
+ * <li>{@code POST /reset} discards the collected execution data and resets the connected agents,</li>
+ * <li>{@code GET /status} reports the number of connected agents and collected classes,</li>
+ * <li>{@code GET /metrics} reports the metrics of the service as JSON (the metrics are also written into the metrics file
+ * after each {@code /coverage} request),</li>
+ * <li>{@code POST /shutdown} stops the service.</li>
+ * </ul>
+ * The requests are processed one by one.
+ */
+public class CoverageService implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CoverageService.class);
+    private static final String TEXT_PLAIN = "text/plain; charset=UTF-8";
+    private static final String APPLICATION_JSON = "application/json; charset=UTF-8";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ServeMojo mojo;
+    private final SourceFilesMapper sourceFilesMapper;
+    private final JacocoReader jacocoReader;
+
+    private final Object executionDataLock = new Object();
+    // the collected execution data; guarded by executionDataLock
+    private ExecutionDataStore executionData = new ExecutionDataStore();
+    private final List<AgentConnection> agents = new CopyOnWriteArrayList<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final ExecutorService agentExecutor = Executors.newCachedThreadPool(daemonThreadFactory("jacoco-gerrit-agent-"));
+    private final ExecutorService controlExecutor = Executors.newSingleThreadExecutor(
+            daemonThreadFactory("jacoco-gerrit-control-"));
+
+    private ServerSocket agentServer;
+    private HttpServer controlServer;
+
+    public CoverageService(ServeMojo mojo) {
+        this.mojo = mojo;
+        sourceFilesMapper = new SourceFilesMapper(mojo);
+        jacocoReader = new JacocoReader(mojo);
+    }
+
+    /**
+     * Builds the warm state and starts listening on the agent and the control ports.
+     */
+    public void start() throws MojoFailureException {
+        long start = System.nanoTime();
+        sourceFilesMapper.getSourceRootIndex();
+        mojo.getMappedProjects()
+                .forEach(project -> sourceFilesMapper.getClassIndex(sourceFilesMapper.getClassesLocation(project)));
+        mojo.getGerritClient();
+        mojo.getMetrics().time("service.warmUp", start);
+
+        try {
+            agentServer = new ServerSocket();
+            agentServer.bind(new InetSocketAddress(mojo.getServiceAddress(), mojo.getAgentPort()));
+            agentExecutor.execute(this::acceptAgents);
+
+            controlServer = HttpServer.create(new InetSocketAddress(mojo.getServiceAddress(), mojo.getControlPort()), 0);
+            controlServer.createContext("/coverage", exchange -> handle(exchange, true, TEXT_PLAIN, this::handleCoverage));
+            controlServer.createContext("/exec", exchange -> handle(exchange, true, TEXT_PLAIN, this::handleExec));
+            controlServer.createContext("/reset", exchange -> handle(exchange, true, TEXT_PLAIN, (ignored, query) -> {
+                reset();
+                return "Execution data discarded.";
+            }));
+            controlServer.createContext("/status", exchange -> handle(exchange, false, TEXT_PLAIN,
+                                                                      (ignored, query) -> status()));
+            controlServer.createContext("/metrics", exchange -> handle(exchange, false, APPLICATION_JSON,
+                                                                       (ignored, query) -> mojo.getMetrics().toJson()));
+            controlServer.createContext("/shutdown", exchange -> handle(exchange, true, TEXT_PLAIN, (ignored, query) -> {
+                stopped.countDown();
+                return "Stopping.";
+            }));
+            controlServer.setExecutor(controlExecutor);
+            controlServer.start();
+        } catch (IOException e) {
+            close();
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Cannot start the coverage service.", e);
+        }
+        LOGGER.info("Coverage service started in {} ms, JaCoCo agents connect to {}:{}, control requests go to http://{}:{}/",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), mojo.getServiceAddress(), getAgentPort(),
+                    mojo.getServiceAddress(), getControlPort());
+    }
+
+    /**
+     * @return the port JaCoCo agents connect to; it's chosen by the system if the configured one is {@code 0}
+     */
+    public int getAgentPort() {
+        return agentServer.getLocalPort();
+    }
+
+    /**
+     * @return the port of the control requests; it's chosen by the system if the configured one is {@code 0}
+     */
+    public int getControlPort() {
+        return controlServer.getAddress().getPort();
+    }
+
+    /**
+     * Waits until the service is asked to shut down.
+     */
+    public void awaitShutdown() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Computes the coverage of given revision from the collected execution data and uploads it to Gerrit.
+     *
+     * @param dump whether to request a dump from the connected agents first
+     * @return {@code true} if the coverage was uploaded, {@code false} if the upload was skipped as the same coverage was
+     * uploaded before
+     */
+    public boolean upload(BatchPipeline.Revision revision, boolean dump) throws MojoFailureException {
+        long start = System.nanoTime();
+        try {
+            if (dump) {
+                dumpAgents(false);
+            }
+            sourceFilesMapper.refresh();
+
+            GerritFacade gerritFacade = new GerritFacade(mojo, revision.getProjectName(), revision.getBranchName(),
+                                                         revision.getChangeId(), revision.getRevisionId());
+            SourceFilesMapper.Mapping filesMapping = sourceFilesMapper.newMapping();
+            gerritFacade.listFiles(filesMapping);
+            Map<String, Map<String, String>> mapping = filesMapping.build();
+
+            Map<String, LineRanges> changedLines = null;
+            if (mojo.isChangedLinesOnly()) {
+                Set<String> sourceFiles = new TreeSet<>();
+                mapping.values().forEach(stringMap -> sourceFiles.addAll(stringMap.values()));
+                changedLines = gerritFacade.listChangedLines(sourceFiles);
+            }
+
+            PatchCoverageInput patchCoverageInput = jacocoReader.readCoverage(mapping, snapshot(mapping), changedLines);
+            LOGGER.info("Coverage of the {} of revision '{}': {}",
+                        mojo.isChangedLinesOnly() ? "changed lines" : "modified files", revision,
+                        CoverageSummary.of(patchCoverageInput));
+            if (!gerritFacade.setCoverage(patchCoverageInput)) {
+                mojo.getMetrics().increment("service.uploadsSkipped", 1);
+                return false;
+            }
+            mojo.getMetrics().increment("service.uploads", 1);
+            return true;
+        } finally {
+            mojo.getMetrics().time("service.upload", start);
+            // a long-running service reports its metrics as it goes
+            mojo.writeMetrics();
+        }
+    }
+
+    /**
+     * Discards the collected execution data and resets the connected agents, e.g., before the tests of another change run.
+     */
+    public void reset() throws MojoFailureException {
+        dumpAgents(true);
+        synchronized (executionDataLock) {
+            executionData = new ExecutionDataStore();
+        }
+    }
+
+    @Override
+    public void close() {
+        stopped.countDown();
+        if (controlServer != null) {
+            controlServer.stop(0);
+        }
+        if (agentServer != null) {
+            try {
+                agentServer.close();
+            } catch (IOException e) {
+                LOGGER.debug("Cannot close the agent port.", e);
+            }
+        }
+        agents.forEach(AgentConnection::close);
+        agentExecutor.shutdownNow();
+        controlExecutor.shutdownNow();
+    }
+
+    private void acceptAgents() {
+        while (!agentServer.isClosed()) {
+            try {
+                Socket socket = agentServer.accept();
+                AgentConnection agent = new AgentConnection(socket);
+                agents.add(agent);
+                mojo.getMetrics().increment("service.agents", 1);
+                LOGGER.info("JaCoCo agent connected from {}.", socket.getRemoteSocketAddress());
+                agentExecutor.execute(agent);
+            } catch (IOException e) {
+                if (!agentServer.isClosed()) {
+                    LOGGER.warn("Cannot accept a connection of a JaCoCo agent.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Requests a dump (or just a reset, if {@code reset} is {@code true}) from all the connected agents and waits until they
+     * respond.
+     */
+    private void dumpAgents(boolean reset) throws MojoFailureException {
+        List<CompletableFuture<Void>> dumps = new ArrayList<>();
+        for (AgentConnection agent : agents) {
+            try {
+                dumps.add(agent.request(!reset, reset));
+            } catch (IOException e) {
+                LOGGER.warn("Cannot request a dump from JaCoCo agent {}: {}", agent, e.getMessage());
+                agent.close();
+            }
+        }
+        if (dumps.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            CompletableFuture.allOf(dumps.toArray(new CompletableFuture<?>[dumps.size()]))
+                    .get(mojo.getTimeout(), TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                   "Timed out after " + mojo.getTimeout() + " seconds while waiting for JaCoCo agents.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Interrupted while waiting for JaCoCo agents.", e);
+        } catch (ExecutionException e) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Dump of JaCoCo agents failed.", e.getCause());
+        } finally {
+            mojo.getMetrics().time("service.dump", start);
+        }
+        LOGGER.debug("{} {} JaCoCo agents.", reset ? "Reset" : "Dumped", dumps.size());
+    }
+
+    /**
+     * @return a copy of the collected execution data of the mapped classes, so that the data can keep coming while the
+     * classes are analyzed
+     */
+    private ExecutionDataStore snapshot(Map<String, Map<String, String>> mapping) {
+        Set<String> classNames = new HashSet<>();
+        mapping.values().forEach(stringMap -> classNames.addAll(stringMap.keySet()));
+
+        ExecutionDataStore snapshot = new ExecutionDataStore();
+        synchronized (executionDataLock) {
+            for (ExecutionData data : executionData.getContents()) {
+                if (classNames.contains(data.getName())) {
+                    snapshot.put(new ExecutionData(data.getId(), data.getName(), data.getProbes().clone()));
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private void merge(ExecutionDataStore store) {
+        synchronized (executionDataLock) {
+            store.accept(executionData);
+        }
+        mojo.getMetrics().increment("service.classesReceived", store.getContents().size());
+    }
+
+    private String handleCoverage(HttpExchange exchange, Map<String, String> query) throws MojoFailureException {
+        String projectName = query.getOrDefault("projectName", mojo.getProjectName());
+        String branchName = query.getOrDefault("branchName", mojo.getBranchName());
+        Utils.requireParameter("projectName", projectName);
+        Utils.requireParameter("branchName", branchName);
+        Utils.requireParameter("changeId", query.get("changeId"));
+        Utils.requireParameter("revisionId", query.get("revisionId"));
+        BatchPipeline.Revision revision = new BatchPipeline.Revision(projectName, branchName, query.get("changeId"),
+                                                                     query.get("revisionId"));
+
+        boolean uploaded = upload(revision, !"false".equals(query.get("dump")));
+        if ("true".equals(query.get("reset"))) {
+            reset();
+        }
+        return "Coverage of revision '" + revision + (uploaded ? "' posted to Gerrit." : "' unchanged, upload skipped.");
+    }
+
+    private String handleExec(HttpExchange exchange, Map<String, String> query) throws MojoFailureException {
+        ExecutionDataStore store = new ExecutionDataStore();
+        try (InputStream inputStream = new BufferedInputStream(exchange.getRequestBody(), BUFFER_SIZE)) {
+            ExecutionDataReader reader = new ExecutionDataReader(inputStream);
+            reader.setSessionInfoVisitor(info -> {
+            });
+            reader.setExecutionDataVisitor(store);
+            reader.read();
+        } catch (IOException | IllegalStateException e) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Cannot read the posted JaCoCo exec file.", e);
+        }
+        merge(store);
+        return "Execution data of " + store.getContents().size() + " classes received.";
+    }
+
+    private String status() {
+        int classes;
+        synchronized (executionDataLock) {
+            classes = executionData.getContents().size();
+        }
+        return "Agents connected: " + agents.size() + ", classes with execution data: " + classes;
+    }
+
+    private void handle(HttpExchange exchange, boolean post, String contentType, Handler handler) throws IOException {
+        int status = 200;
+        String response;
+        try {
+            if (post != "POST".equals(exchange.getRequestMethod())) {
+                status = 405;
+                response = "Method " + exchange.getRequestMethod() + " not allowed.";
+            } else {
+                response = handler.handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+            }
+        } catch (MojoFailureException | IOException | RuntimeException e) {
+            LOGGER.error("Request '{}' failed.", exchange.getRequestURI(), e);
+            status = 500;
+            response = String.valueOf(e.getMessage());
+        }
+
+        byte[] body = (response + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", status == 200 ? contentType : TEXT_PLAIN);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> result = new HashMap<>();
+        if (query == null) {
+            return result;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                result.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                           URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return result;
+    }
+
+    private static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * The Handler handles a control request.
+     */
+    @FunctionalInterface
+    private interface Handler {
+        /**
+         * @param query the decoded query parameters of the request
+         * @return the text of the response
+         */
+        String handle(HttpExchange exchange, Map<String, String> query) throws MojoFailureException, IOException;
+    }
+
+    /**
+     * The AgentConnection receives the execution data of a JaCoCo agent connected in {@code tcpclient} mode.
+     */
+    private class AgentConnection implements Runnable {
+        private final Socket socket;
+        private final RemoteControlWriter writer;
+        // completed when the agent confirms the last requested command; guarded by this
+        private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+
+        AgentConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            writer = new RemoteControlWriter(socket.getOutputStream());
+        }
+
+        @Override
+        public void run() {
+            try {
+                RemoteControlReader reader = new RemoteControlReader(new BufferedInputStream(socket.getInputStream(),
+                                                                                              BUFFER_SIZE));
+                ExecutionDataStore[] received = {new ExecutionDataStore()};
+                reader.setSessionInfoVisitor(info -> LOGGER.debug("Receiving session '{}' from JaCoCo agent {}.",
+                                                                  info.getId(), this));
+                reader.setExecutionDataVisitor(data -> received[0].put(data));
+                // each dump ends with a confirmation; the data the agent sends when its JVM exits ends with the stream
+                while (reader.read()) {
+                    merge(received[0]);
+                    received[0] = new ExecutionDataStore();
+                    complete();
+                }
+                merge(received[0]);
+                LOGGER.info("JaCoCo agent {} disconnected.", this);
+            } catch (IOException | IllegalStateException e) {
+                if (!(e instanceof SocketException) || !socket.isClosed()) {
+                    LOGGER.warn("Connection to JaCoCo agent {} failed: {}", this, e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Sends a command to the agent.
+         *
+         * @return the future completed once the agent confirms the command
+         */
+        synchronized CompletableFuture<Void> request(boolean dump, boolean reset) throws IOException {
+            pending = new CompletableFuture<>();
+            writer.visitDumpCommand(dump, reset);
+            return pending;
+        }
+
+        private synchronized void complete() {
+            pending.complete(null);
+        }
+
+        void close() {
+            agents.remove(this);
+            complete();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.debug("Cannot close the connection of JaCoCo agent {}.", this, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(socket.getRemoteSocketAddress());
+        }
+    }
+}
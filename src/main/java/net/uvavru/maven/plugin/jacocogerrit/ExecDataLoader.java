@@ -0,0 +1,336 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.jacoco.core.data.ExecutionDataReader;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.runtime.RemoteControlReader;
+import org.jacoco.core.runtime.RemoteControlWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The ExecDataLoader reads JaCoCo exec files (or dumps of JaCoCo agents) as a stream and keeps only the execution data of the
+ * classes accepted by a filter. That way, the memory needed depends on the number of classes of the patchset, not on the size
+ * of the exec files.
+ */
+public class ExecDataLoader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExecDataLoader.class);
+    private static final int PREFETCH_BUFFER_SIZE = 1024 * 1024;
+    private static final int AGENT_BUFFER_SIZE = 64 * 1024;
+
+    private final JacocoGerritMojo mojo;
+
+    public ExecDataLoader(JacocoGerritMojo mojo) {
+        this.mojo = mojo;
+    }
+
+    /**
+     * Resolves the exec files to read. Those are either the files matching {@link JacocoGerritMojo#getExecFiles()} patterns
+     * (resolved against the basedir of the project) or {@link JacocoGerritMojo#getExecFile()} if no pattern is set and the
+     * execution data isn't dumped from {@link JacocoGerritMojo#getAgents() agents}.
+     *
+     * @return sorted list of existing exec files
+     */
+    public List<File> resolveExecFiles() throws MojoFailureException {
+        List<String> patterns = mojo.getExecFiles();
+        if (patterns == null || patterns.isEmpty()) {
+            return hasAgents() ? Collections.emptyList() : Collections.singletonList(mojo.getExecFile());
+        }
+
+        Path basedir = mojo.getProject().getBasedir().toPath();
+        Set<Path> execFiles = new TreeSet<>();
+        for (String pattern : patterns) {
+            try {
+                execFiles.addAll(Utils.resolveGlob(basedir, pattern.trim()));
+            } catch (IOException e) {
+                Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Cannot resolve JaCoCo exec files: " + pattern, e);
+            }
+        }
+
+        if (execFiles.isEmpty()) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "No JaCoCo exec file matches: " + patterns);
+        }
+        LOGGER.info("Reading {} JaCoCo exec files.", execFiles.size());
+        execFiles.forEach(execFile -> LOGGER.debug("JaCoCo exec file to read: {}", execFile));
+        return execFiles.stream().map(Path::toFile).collect(Collectors.toList());
+    }
+
+    /**
+     * Reads given exec files without parsing them so that they're in the OS cache by the time they're loaded. This is useful
+     * when the files can be read while waiting for something else, such as a response from Gerrit.
+     */
+    public void prefetch(List<File> execFiles) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PREFETCH_BUFFER_SIZE);
+        for (File execFile : execFiles) {
+            // only the looked up parts of a store are read
+            if (ExecStore.isStore(execFile)) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(execFile.toPath(), StandardOpenOption.READ)) {
+                while (channel.read(buffer) >= 0 && !Thread.currentThread().isInterrupted()) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // the error is going to be reported when the file is loaded
+                LOGGER.debug("Cannot prefetch JaCoCo exec file: {}", execFile, e);
+            }
+        }
+    }
+
+    /**
+     * Loads given exec files (in parallel if there are more of them) and the dumps of the {@link JacocoGerritMojo#getAgents()
+     * agents} (all of them at once) and merges the execution data of given classes into a single store. The exec files can be
+     * {@link ExecStore stores} as well, only the given classes are looked up in them.
+     *
+     * @param execFiles  the exec files to load
+     * @param classNames the VM names of the classes (such as {@code pkg/Foo$Inner}) to keep the execution data of; or {@code
+     *                   null} to keep the execution data of all the classes
+     * @return the merged execution data
+     */
+    public ExecutionDataStore load(List<File> execFiles, Set<String> classNames) throws MojoFailureException {
+        Predicate<String> classNameFilter = classNames == null ? className -> true : classNames::contains;
+        List<Callable<ExecutionDataStore>> sources = new ArrayList<>();
+        execFiles.forEach(execFile -> sources.add(() -> ExecStore.isStore(execFile)
+                ? lookup(execFile, classNames)
+                : load(execFile, classNameFilter)));
+        List<String> agents = hasAgents() ? mojo.getAgents() : Collections.emptyList();
+        agents.forEach(agent -> sources.add(() -> dump(agent.trim(), classNameFilter)));
+
+        ExecutionDataStore result = new ExecutionDataStore();
+        // the agents are waited for rather than read, so each of them gets its own thread
+        int threads = Math.min(Math.max(mojo.getAnalysisThreads(), agents.size()), sources.size());
+
+        if (threads <= 1) {
+            for (Callable<ExecutionDataStore> source : sources) {
+                call(source).accept(result);
+            }
+            return result;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<ExecutionDataStore>> futures = new ArrayList<>();
+            for (Callable<ExecutionDataStore> source : sources) {
+                futures.add(pool.submit(source));
+            }
+            // merge in the order of the files so that the result doesn't depend on the scheduling
+            for (ForkJoinTask<ExecutionDataStore> future : futures) {
+                future.get().accept(result);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Interrupted while reading JaCoCo exec files.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MojoFailureException) {
+                throw (MojoFailureException) e.getCause();
+            }
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Cannot read JaCoCo execution data: " + execFiles
+                    + (agents.isEmpty() ? "" : ", agents " + agents), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    private ExecutionDataStore load(File execFile, Predicate<String> classNameFilter) throws MojoFailureException {
+        ExecutionDataStore store = new ExecutionDataStore();
+        int[] skipped = new int[1];
+
+        try (InputStream inputStream = open(execFile)) {
+            ExecutionDataReader reader = new ExecutionDataReader(inputStream);
+            visitFiltered(reader, classNameFilter, store, skipped);
+            reader.read();
+        } catch (IOException | IllegalStateException e) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Cannot read JaCoCo exec file: " + execFile, e);
+        }
+
+        LOGGER.debug("Read {} classes from JaCoCo exec file '{}', skipped {} classes not related to the patchset.",
+                     store.getContents().size(), execFile, skipped[0]);
+        mojo.getMetrics().increment("exec.files", 1);
+        mojo.getMetrics().increment("exec.bytes", execFile.length());
+        mojo.getMetrics().increment("exec.classesKept", store.getContents().size());
+        mojo.getMetrics().increment("exec.classesSkipped", skipped[0]);
+        return store;
+    }
+
+    /**
+     * Looks up the execution data of given classes in a store.
+     *
+     * @param classNames the classes to look up or {@code null} to read all the classes of the store
+     */
+    private ExecutionDataStore lookup(File storeFile, Set<String> classNames) throws MojoFailureException {
+        long start = System.nanoTime();
+        ExecutionDataStore store = new ExecutionDataStore();
+        int size = 0;
+        try {
+            ExecStore execStore = ExecStore.open(storeFile);
+            size = execStore.size();
+            if (classNames == null) {
+                execStore.accept(store);
+            } else {
+                classNames.forEach(className -> execStore.lookup(className, store));
+            }
+        } catch (IOException | IllegalStateException e) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                   "Cannot read JaCoCo execution data store: " + storeFile, e);
+        }
+
+        LOGGER.debug("Looked up {} classes in JaCoCo execution data store '{}' of {} classes in {} ms.",
+                     store.getContents().size(), storeFile, size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        mojo.getMetrics().increment("exec.stores", 1);
+        mojo.getMetrics().increment("exec.classesKept", store.getContents().size());
+        mojo.getMetrics().increment("exec.classesSkipped", size - store.getContents().size());
+        return store;
+    }
+
+    /**
+     * Requests a dump from a JaCoCo agent running in {@code tcpserver} mode and reads the execution data as it's being
+     * received.
+     *
+     * @param agent the endpoint of the agent, {@code host:port}
+     */
+    private ExecutionDataStore dump(String agent, Predicate<String> classNameFilter) throws MojoFailureException {
+        int separator = agent.lastIndexOf(':');
+        int port = -1;
+        try {
+            port = separator > 0 ? Integer.parseInt(agent.substring(separator + 1)) : -1;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        if (port < 0) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "JaCoCo agent '" + agent + "' is not 'host:port'.");
+        }
+
+        long start = System.nanoTime();
+        ExecutionDataStore store = new ExecutionDataStore();
+        int[] skipped = new int[1];
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(agent.substring(0, separator), port),
+                           (int) TimeUnit.SECONDS.toMillis(mojo.getConnectTimeout()));
+            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(mojo.getReadTimeout()));
+            RemoteControlWriter writer = new RemoteControlWriter(socket.getOutputStream());
+            RemoteControlReader reader = new RemoteControlReader(new BufferedInputStream(socket.getInputStream(),
+                                                                                          AGENT_BUFFER_SIZE));
+            visitFiltered(reader, classNameFilter, store, skipped);
+            writer.visitDumpCommand(true, mojo.isAgentReset());
+            // the dump ends with the confirmation of the command
+            if (!reader.read()) {
+                throw new EOFException("Connection closed before the dump was completed.");
+            }
+        } catch (IOException | IllegalStateException e) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Cannot dump JaCoCo agent: " + agent, e);
+        }
+
+        LOGGER.debug("Dumped {} classes from JaCoCo agent '{}' in {} ms, skipped {} classes not related to the patchset.",
+                     store.getContents().size(), agent, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                     skipped[0]);
+        mojo.getMetrics().increment("exec.agents", 1);
+        mojo.getMetrics().increment("exec.classesKept", store.getContents().size());
+        mojo.getMetrics().increment("exec.classesSkipped", skipped[0]);
+        return store;
+    }
+
+    private static void visitFiltered(ExecutionDataReader reader,
+                                      Predicate<String> classNameFilter,
+                                      ExecutionDataStore store,
+                                      int[] skipped) {
+        reader.setSessionInfoVisitor(info -> {
+        });
+        reader.setExecutionDataVisitor(data -> {
+            if (classNameFilter.test(data.getName())) {
+                store.put(data);
+            } else {
+                ++skipped[0];
+            }
+        });
+    }
+
+    private static ExecutionDataStore call(Callable<ExecutionDataStore> source) throws MojoFailureException {
+        try {
+            return source.call();
+        } catch (MojoFailureException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean hasAgents() {
+        return mojo.getAgents() != null && !mojo.getAgents().isEmpty();
+    }
+
+    private InputStream open(File execFile) throws IOException {
+        if (mojo.isMemoryMapExecFiles() && execFile.length() <= Integer.MAX_VALUE) {
+            try (FileChannel channel = FileChannel.open(execFile.toPath(), StandardOpenOption.READ)) {
+                return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+        return new BufferedInputStream(new FileInputStream(execFile));
+    }
+
+    /**
+     * The InputStream reading from a (memory mapped) {@link ByteBuffer}.
+     */
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
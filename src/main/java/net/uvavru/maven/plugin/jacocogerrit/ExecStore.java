@@ -0,0 +1,228 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.data.IExecutionDataVisitor;
+
+/**
+ * The ExecStore is an indexed form of JaCoCo execution data for the exec files that are evaluated many times (e.g., a large
+ * exec file of a nightly test run that the changes of the next day are checked against). Unlike an exec file, which has to be
+ * parsed from the beginning to the end, the store is memory mapped and the execution data of a class is found by a binary
+ * search over an index sorted by the class names, so the time to load the data of a patchset doesn't depend on the size of
+ * the store.
+ * <p>
+ * The store consists of a header, the index of fixed size records ({@code id}, the offset and the length of the UTF-8 name,
+ * the offset of the probes and the number of probes) sorted by the UTF-8 bytes of the names and by the ids, the names and the
+ * probes packed into bits.
+ */
+public class ExecStore {
+    private static final int MAGIC = 0x4A474558;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int RECORD_SIZE = 24;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Comparator<byte[]> UNSIGNED_BYTES = (left, right) -> {
+        for (int i = 0; i < Math.min(left.length, right.length); ++i) {
+            int result = Integer.compare(left[i] & 0xFF, right[i] & 0xFF);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(left.length, right.length);
+    };
+
+    private final ByteBuffer buffer;
+    private final int size;
+
+    private ExecStore(ByteBuffer buffer, int size) {
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /**
+     * @return whether given file is a store (rather than an exec file)
+     */
+    public static boolean isStore(File file) {
+        try (DataInputStream input = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            return input.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Maps given store into memory.
+     */
+    public static ExecStore open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Execution data store is too large: " + file);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("Incompatible execution data store: " + file);
+            }
+            int size = buffer.getInt(8);
+            if (size < 0 || HEADER_SIZE + (long) size * RECORD_SIZE > buffer.limit()) {
+                throw new IOException("Truncated execution data store: " + file);
+            }
+            return new ExecStore(buffer, size);
+        }
+    }
+
+    /**
+     * Writes given execution data into a store. The file is replaced atomically.
+     */
+    public static void write(ExecutionDataStore executionData, File file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        executionData.getContents().forEach(data -> entries.add(new Entry(data)));
+        entries.sort(Comparator.<Entry, byte[]>comparing(entry -> entry.name, UNSIGNED_BYTES)
+                             .thenComparingLong(entry -> entry.data.getId()));
+
+        long firstNameOffset = HEADER_SIZE + (long) entries.size() * RECORD_SIZE;
+        long firstProbesOffset = firstNameOffset + entries.stream().mapToLong(entry -> entry.name.length).sum();
+        long end = firstProbesOffset + entries.stream().mapToLong(entry -> (entry.data.getProbes().length + 7) / 8).sum();
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("Execution data is too large for a store: " + executionData.getContents().size()
+                                          + " classes");
+        }
+
+        Utils.writeAtomically(file.toPath(), stream -> {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                output.writeInt(entries.size());
+                long nameOffset = firstNameOffset;
+                long probesOffset = firstProbesOffset;
+                for (Entry entry : entries) {
+                    output.writeLong(entry.data.getId());
+                    output.writeInt((int) nameOffset);
+                    output.writeInt(entry.name.length);
+                    output.writeInt((int) probesOffset);
+                    output.writeInt(entry.data.getProbes().length);
+                    nameOffset += entry.name.length;
+                    probesOffset += (entry.data.getProbes().length + 7) / 8;
+                }
+                for (Entry entry : entries) {
+                    output.write(entry.name);
+                }
+                for (Entry entry : entries) {
+                    boolean[] probes = entry.data.getProbes();
+                    for (int i = 0; i < probes.length; i += 8) {
+                        int bits = 0;
+                        for (int bit = 0; bit < 8 && i + bit < probes.length; ++bit) {
+                            if (probes[i + bit]) {
+                                bits |= 1 << bit;
+                            }
+                        }
+                        output.writeByte(bits);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of classes in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Passes the execution data of all the classes of given name (there can be more versions of a class) to given visitor.
+     *
+     * @param className the VM name of the class, such as {@code pkg/Foo$Inner}
+     * @return the number of the classes found
+     */
+    public int lookup(String className, IExecutionDataVisitor visitor) {
+        byte[] name = className.getBytes(StandardCharsets.UTF_8);
+        // the first record whose name is not lower than the name
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareName(middle, name) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int found = 0;
+        for (int record = low; record < size && compareName(record, name) == 0; ++record) {
+            visitor.visitClassExecution(read(record, className));
+            ++found;
+        }
+        return found;
+    }
+
+    /**
+     * Passes the execution data of all the classes of the store to given visitor.
+     */
+    public void accept(IExecutionDataVisitor visitor) {
+        for (int record = 0; record < size; ++record) {
+            int position = HEADER_SIZE + record * RECORD_SIZE;
+            byte[] name = new byte[buffer.getInt(position + 12)];
+            int nameOffset = buffer.getInt(position + 8);
+            for (int i = 0; i < name.length; ++i) {
+                name[i] = buffer.get(nameOffset + i);
+            }
+            visitor.visitClassExecution(read(record, new String(name, StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Compares the name of given record with given name; the buffer is read by absolute positions only so that the store can
+     * be read by more threads.
+     */
+    private int compareName(int record, byte[] name) {
+        int position = HEADER_SIZE + record * RECORD_SIZE;
+        int nameOffset = buffer.getInt(position + 8);
+        int nameLength = buffer.getInt(position + 12);
+        for (int i = 0; i < Math.min(nameLength, name.length); ++i) {
+            int result = Integer.compare(buffer.get(nameOffset + i) & 0xFF, name[i] & 0xFF);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(nameLength, name.length);
+    }
+
+    private ExecutionData read(int record, String className) {
+        int position = HEADER_SIZE + record * RECORD_SIZE;
+        long id = buffer.getLong(position);
+        int probesOffset = buffer.getInt(position + 16);
+        boolean[] probes = new boolean[buffer.getInt(position + 20)];
+        for (int i = 0; i < probes.length; ++i) {
+            probes[i] = (buffer.get(probesOffset + i / 8) & 1 << i % 8) != 0;
+        }
+        return new ExecutionData(id, className, probes);
+    }
+
+    /**
+     * The Entry is the execution data of a class to be written with its encoded name.
+     */
+    private static class Entry {
+        private final ExecutionData data;
+        private final byte[] name;
+
+        Entry(ExecutionData data) {
+            this.data = data;
+            name = data.getName().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
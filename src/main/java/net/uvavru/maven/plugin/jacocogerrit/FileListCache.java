@@ -0,0 +1,112 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The FileListCache keeps the lists of files modified by revisions on disk so that the re-runs for the same revision (e.g.,
+ * retriggered builds or other goals of the same build) don't need to download them from Gerrit again. Each list is stored in
+ * its own file named by the hash of the key of the list, e.g., of the URI of the revision. The cache can be shared by
+ * concurrent builds, the files are replaced atomically.
+ */
+public class FileListCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileListCache.class);
+    private static final int MAGIC = 0x4A47464C;
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+
+    public FileListCache(File directory) {
+        this.directory = directory.toPath().toAbsolutePath();
+    }
+
+    /**
+     * @return the cached list of given key or {@code null} if it's not cached (or the cached file can't be read)
+     */
+    public Entry read(String key) {
+        Path file = entryFile(key);
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION || !key.equals(input.readUTF())) {
+                LOGGER.debug("Ignoring incompatible cached file list: {}", file);
+                return null;
+            }
+            String etag = input.readBoolean() ? input.readUTF() : null;
+            int count = input.readInt();
+            List<String> files = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                files.add(input.readUTF());
+            }
+            return new Entry(etag, files);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.debug("Cannot read cached file list: {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the list of given key.
+     *
+     * @param etag the entity tag of the list if Gerrit sent one, {@code null} otherwise
+     */
+    public void write(String key, String etag, List<String> files) throws IOException {
+        Utils.writeAtomically(entryFile(key), stream -> {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                output.writeUTF(key);
+                output.writeBoolean(etag != null);
+                if (etag != null) {
+                    output.writeUTF(etag);
+                }
+                output.writeInt(files.size());
+                for (String path : files) {
+                    output.writeUTF(path);
+                }
+            }
+        });
+    }
+
+    private Path entryFile(String key) {
+        return directory.resolve(Utils.sha1Hex(key) + ".bin");
+    }
+
+    /**
+     * The Entry is a cached list of files.
+     */
+    public static class Entry {
+        private final String etag;
+        private final List<String> files;
+
+        Entry(String etag, List<String> files) {
+            this.etag = etag;
+            this.files = Collections.unmodifiableList(files);
+        }
+
+        /**
+         * @return the entity tag of the list or {@code null} if Gerrit didn't send one
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        public List<String> getFiles() {
+            return files;
+        }
+    }
+}
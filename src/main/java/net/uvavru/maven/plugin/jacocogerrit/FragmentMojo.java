@@ -0,0 +1,154 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The FragmentMojo computes the coverage of the source files of a single module modified by the revision and writes it into
+ * the {@link #getCoverageFile() coverage artifact} of the module. It runs in the lifecycle of each module (in parallel with
+ * the other modules in case of a parallel build), so the analysis overlaps the rest of the build. The fragments of all the
+ * modules are then merged and uploaded at once by the {@code upload} goal.
+ * <p>
+ * The list of the modified files is read from Gerrit just once per build and shared by all the modules (unless it's given by
+ * {@link #getChangedFiles()}).
+ */
+@Mojo(name = "fragment", defaultPhase = LifecyclePhase.VERIFY, threadSafe = true)
+public class FragmentMojo extends JacocoGerritMojo {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FragmentMojo.class);
+    private static final String POM_PACKAGING = "pom";
+
+    // Map<Revision, ModifiedFiles> shared by the modules of the build
+    private static final Map<String, CompletableFuture<List<String>>> MODIFIED_FILES = new ConcurrentHashMap<>();
+
+    /**
+     * The directory the paths of the modified files are relative to, i.e., the root of the repository. By default, it's the
+     * directory Maven was started in.
+     */
+    @Parameter(property = "jacoco-gerrit.sourceBasedir", defaultValue = "${session.executionRootDirectory}")
+    private File sourceBasedir;
+
+    // the modified files of this module
+    private List<String> moduleChangedFiles;
+
+    @Override
+    public void execute() throws MojoFailureException {
+        if (POM_PACKAGING.equals(getProject().getPackaging())) {
+            LOGGER.info("Skipping project '{}' with packaging '{}'.", getProject().getArtifactId(), POM_PACKAGING);
+            return;
+        }
+        checkRevisionParameters();
+
+        long start = System.nanoTime();
+        try {
+            Files.deleteIfExists(getCoverageFile().toPath());
+
+            moduleChangedFiles = filterModuleFiles(listModifiedFiles());
+            // the exec files of a module without modified files don't need to exist
+            PatchCoverageInput patchCoverageInput = moduleChangedFiles.isEmpty()
+                    ? new PatchCoverageInput()
+                    : new CoveragePipeline(this).computeCoverage();
+            new CoverageArtifact(getProjectName(), getBranchName(), getChangeId(), getRevisionId(), patchCoverageInput)
+                    .write(getCoverageFile());
+        } catch (IOException e) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                   "Cannot write the coverage fragment: " + getCoverageFile(), e);
+        } finally {
+            finish(start);
+        }
+
+        LOGGER.info("Test coverage of {} modified files of project '{}' written to: {}", moduleChangedFiles.size(),
+                    getProject().getArtifactId(), getCoverageFile());
+    }
+
+    /**
+     * @return the files modified by the revision; they're read from Gerrit by the first module and shared with the others
+     */
+    private List<String> listModifiedFiles() throws MojoFailureException {
+        List<String> changedFiles = super.getChangedFiles();
+        if (changedFiles != null && !changedFiles.isEmpty()) {
+            return changedFiles;
+        }
+
+        String revision = getProjectName() + "~" + getBranchName() + "~" + getChangeId() + "/" + getRevisionId();
+        CompletableFuture<List<String>> modifiedFiles = new CompletableFuture<>();
+        CompletableFuture<List<String>> shared = MODIFIED_FILES.putIfAbsent(revision, modifiedFiles);
+        if (shared == null) {
+            try {
+                List<String> files = new ArrayList<>();
+                new GerritFacade(this).listFiles(files::add);
+                modifiedFiles.complete(Collections.unmodifiableList(files));
+                return files;
+            } catch (MojoFailureException | RuntimeException e) {
+                // the other modules are going to try again
+                MODIFIED_FILES.remove(revision, modifiedFiles);
+                modifiedFiles.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return shared.get(getTimeout(), TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                   "Timed out while waiting for the list of the modified files.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                   "Interrupted while waiting for the list of the modified files.", e);
+        } catch (ExecutionException e) {
+            // reported by the module that listed the files, this one lists them again
+            MODIFIED_FILES.remove(revision, shared);
+            return listModifiedFiles();
+        }
+        return null;
+    }
+
+    /**
+     * @return the files located in the basedir of this module
+     */
+    private List<String> filterModuleFiles(List<String> files) {
+        Path basedir = getSourceBasedir().toPath().toAbsolutePath();
+        Path moduleBasedir = getProject().getBasedir().toPath().toAbsolutePath().normalize();
+        return files.stream()
+                .filter(file -> basedir.resolve(file).normalize().startsWith(moduleBasedir))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<String> getChangedFiles() {
+        return moduleChangedFiles;
+    }
+
+    @Override
+    public File getSourceBasedir() {
+        return sourceBasedir != null ? sourceBasedir : super.getSourceBasedir();
+    }
+
+    @Override
+    public List<MavenProject> getMappedProjects() {
+        return Collections.singletonList(getProject());
+    }
+}
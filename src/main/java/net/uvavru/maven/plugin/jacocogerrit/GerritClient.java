@@ -0,0 +1,178 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
+
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.maven.plugin.MojoFailureException;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
+import org.glassfish.jersey.filter.LoggingFilter;
+import org.glassfish.jersey.jackson.JacksonFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The GerritClient is the HTTP client shared by all the {@link GerritFacade facades} of a run. The connections are pooled
+ * (and kept alive) and the number of requests in progress is limited by the size of the pool, as a connection is held by a
+ * request until its response is read or closed. The requests that fail with a server error (or a connection failure, if the
+ * request is idempotent) are retried with an exponential backoff with jitter.
+ */
+public class GerritClient implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(GerritClient.class);
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    private final AbstractJacocoGerritMojo mojo;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final Client client;
+    private final ExecutorService executor;
+
+    public GerritClient(AbstractJacocoGerritMojo mojo) throws MojoFailureException {
+        this.mojo = mojo;
+        Utils.requireParameter("host", mojo.getHost());
+        Utils.requireParameter("port", mojo.getPort());
+
+        int maxConnections = Math.max(1, mojo.getMaxConnections());
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        client = ClientBuilder.newClient(new ClientConfig()
+                                                 .connectorProvider(new ApacheConnectorProvider())
+                                                 .property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager)
+                                                 .property(ClientProperties.CONNECT_TIMEOUT,
+                                                           (int) TimeUnit.SECONDS.toMillis(mojo.getConnectTimeout()))
+                                                 .property(ClientProperties.READ_TIMEOUT,
+                                                           (int) TimeUnit.SECONDS.toMillis(mojo.getReadTimeout()))
+                                                 .register(new GerritFacade.XSSFilter())
+                                                 .register(JacksonFeature.class)
+                                                 .register(HttpAuthenticationFeature.universal(mojo.getUsername(),
+                                                                                               mojo.getPassword())
+                                                 )
+        );
+        if (LOG.isDebugEnabled()) {
+            client.register(new LoggingFilter(java.util.logging.Logger.getLogger(GerritFacade.class.getName()), true));
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(maxConnections, runnable -> {
+            Thread thread = new Thread(runnable, "jacoco-gerrit-client-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the target of given revision
+     */
+    public WebTarget target(String projectName, String branchName, String changeId, String revisionId) {
+        return client.target(UriBuilder.fromPath(mojo.getBasePath())
+                                     .host(mojo.getHost())
+                                     .port(mojo.getPort())
+                                     .scheme(mojo.getScheme()))
+                .path(mojo.isAnonymous() ? "" : "a")
+                .path("changes")
+                .path(projectName + "~" + branchName + "~" + changeId)
+                .path("revisions")
+                .path(revisionId);
+    }
+
+    /**
+     * Executes a request once a connection of the pool is available. The request is retried if the response is a server error
+     * or, if the request is idempotent, if the request fails.
+     *
+     * @param description the description of the request, such as {@code listing files}
+     * @param idempotent  whether the request can be safely repeated after a failure with unknown outcome
+     * @param request     the request to execute
+     * @return the response of the last attempt; it's up to the caller to check its status and to close it, which returns the
+     * connection to the pool
+     */
+    public Response execute(String description, boolean idempotent, Supplier<Response> request) throws MojoFailureException {
+        for (int attempt = 0; ; ++attempt) {
+            Response response = null;
+            ProcessingException failure = null;
+            try {
+                response = request.get();
+            } catch (ProcessingException e) {
+                failure = e;
+            }
+
+            boolean serverError = response != null
+                    && Response.Status.Family.SERVER_ERROR == response.getStatusInfo().getFamily();
+            boolean retry = attempt < mojo.getRetries() && (serverError || failure != null && idempotent);
+            if (!retry) {
+                if (failure != null) {
+                    Utils.logErrorAndThrow(LOG, MojoFailureException::new, "Failed " + description + ".", failure);
+                }
+                return response;
+            }
+
+            if (response != null) {
+                LOG.warn("Received an error while {}, retrying: {}", description, response);
+                response.close();
+            } else {
+                LOG.warn("Failed {}, retrying: {}", description, failure.getMessage());
+            }
+            mojo.getMetrics().increment("gerrit.retries", 1);
+            sleep(backoff(attempt), description);
+        }
+    }
+
+    /**
+     * Runs given task on the threads of the client. The tasks are expected to {@link #execute(String, boolean, Supplier)
+     * execute} requests.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * @return the exponential backoff of given attempt with "equal jitter", i.e., a random delay between the half and the whole
+     * of the backoff
+     */
+    private long backoff(int attempt) {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, mojo.getRetryBackoff() * (1L << Math.min(attempt, 20)));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private static void sleep(long millis, String description) throws MojoFailureException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Utils.logErrorAndThrow(LOG, MojoFailureException::new, "Interrupted while " + description + ".", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        client.close();
+        connectionManager.shutdown();
+    }
+}
@@ -1,32 +1,51 @@
 package net.uvavru.maven.plugin.jacocogerrit;
 
-import java.io.BufferedInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import javax.ws.rs.ProcessingException;
 import javax.ws.rs.WebApplicationException;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Variant;
 import javax.ws.rs.ext.ReaderInterceptor;
 import javax.ws.rs.ext.ReaderInterceptorContext;
 
 import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import org.apache.maven.plugin.MojoFailureException;
-import org.glassfish.jersey.client.ClientConfig;
-import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
-import org.glassfish.jersey.filter.LoggingFilter;
-import org.glassfish.jersey.jackson.JacksonFeature;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,92 +54,371 @@ import org.slf4j.LoggerFactory;
  */
 public class GerritFacade {
     private static final Logger LOG = LoggerFactory.getLogger(GerritFacade.class);
-    private static final String COMMIT_MSG = "/COMMIT_MSG";
+    // the magic files, such as /COMMIT_MSG, are the only paths starting with a slash
+    private static final String MAGIC_FILE_PREFIX = "/";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // a revision given by anything else, such as 'current' or a patchset number, may stand for another patchset next time
+    private static final Pattern COMMIT_ID = Pattern.compile("[0-9a-f]{40}");
 
-    private final List<String> gerritFileList = new ArrayList<>();
-    private final JacocoGerritMojo mojo;
+    private final AbstractJacocoGerritMojo mojo;
 
+    private final GerritClient gerritClient;
     private final WebTarget target;
+    private final boolean commitId;
+    private final CoverageJsonWriter coverageJsonWriter = new CoverageJsonWriter();
 
-    public GerritFacade(JacocoGerritMojo jacocoGerritMojo) {
+    /**
+     * Creates the facade of the revision given by the parameters of the mojo.
+     */
+    public GerritFacade(AbstractJacocoGerritMojo jacocoGerritMojo) throws MojoFailureException {
+        this(jacocoGerritMojo, jacocoGerritMojo.getProjectName(), jacocoGerritMojo.getBranchName(),
+             jacocoGerritMojo.getChangeId(), jacocoGerritMojo.getRevisionId());
+    }
+
+    /**
+     * Creates the facade of given revision using the Gerrit access parameters of the mojo.
+     */
+    public GerritFacade(AbstractJacocoGerritMojo jacocoGerritMojo,
+                        String projectName,
+                        String branchName,
+                        String changeId,
+                        String revisionId) throws MojoFailureException {
         mojo = jacocoGerritMojo;
-        target = ClientBuilder.newClient(new ClientConfig()
-                                                 .register(new XSSFilter())
-                                                 .register(JacksonFeature.class)
-                                                 .register(HttpAuthenticationFeature.universal(mojo.getUsername(),
-                                                                                               mojo.getPassword())
-                                                 )
-        ).target(UriBuilder.fromPath(mojo.getBasePath())
-                         .host(mojo.getHost())
-                         .port(mojo.getPort())
-                         .scheme(mojo.getScheme()))
-                .path(mojo.isAnonymous() ? "" : "a")
-                .path("changes")
-                .path(mojo.getProjectName() + "~" + mojo.getBranchName() + "~" + mojo.getChangeId())
-                .path("revisions")
-                .path(mojo.getRevisionId());
-
-        if (LOG.isDebugEnabled()) {
-            target.register(new LoggingFilter(java.util.logging.Logger.getLogger(getClass().getName()), true));
-        }
+        gerritClient = mojo.getGerritClient();
+        target = gerritClient.target(projectName, branchName, changeId, revisionId);
+        commitId = revisionId != null && COMMIT_ID.matcher(revisionId).matches();
     }
 
-    public List<String> listFiles() throws MojoFailureException {
-        if (!gerritFileList.isEmpty()) {
-            LOG.debug("File list already filled. Not calling Gerrit.");
+    /**
+     * Lists the files modified by the revision. The response is parsed as it's being received and each file is passed to given
+     * consumer right away, without building the whole list first. The magic files of Gerrit, such as {@code /COMMIT_MSG} or
+     * {@code /MERGE_LIST}, are skipped.
+     * <p>
+     * The list is taken from the {@link AbstractJacocoGerritMojo#getFileListCache() cache} if it's there. As the list of a
+     * commit never changes, the cached list is used without asking Gerrit unless Gerrit sent an ETag with it, in which case
+     * it's revalidated with a conditional request. The cache is used only if the revision is given by the full SHA-1 of its
+     * commit; other revision ids (e.g., {@code current} or a patchset number) may refer to another patchset next time.
+     *
+     * @param consumer the consumer of the paths of the modified files relative to the root of the repository
+     * @return the number of the modified files
+     */
+    public int listFiles(Consumer<String> consumer) throws MojoFailureException {
+        long start = System.nanoTime();
+        FileListCache fileListCache = commitId ? mojo.getFileListCache() : null;
+        WebTarget filesTarget = target.path("files");
+        String cacheKey = filesTarget.getUri().toString();
+        FileListCache.Entry cached = fileListCache == null ? null : fileListCache.read(cacheKey);
+
+        int count;
+        if (cached != null && cached.getEtag() == null) {
+            LOG.info("Using the cached list of modified files.");
+            mojo.getMetrics().increment("fileListCache.hits", 1);
+            cached.getFiles().forEach(consumer);
+            count = cached.getFiles().size();
         } else {
+            Response response = gerritClient.execute("listing files", true, () -> {
+                Invocation.Builder request = filesTarget.request();
+                if (cached != null) {
+                    request.header(HttpHeaders.IF_NONE_MATCH, cached.getEtag());
+                }
+                return request.get();
+            });
+            try {
+                if (cached != null && Response.Status.NOT_MODIFIED.getStatusCode() == response.getStatus()) {
+                    LOG.info("Using the cached list of modified files, it's not modified according to Gerrit.");
+                    mojo.getMetrics().increment("fileListCache.revalidations", 1);
+                    cached.getFiles().forEach(consumer);
+                    count = cached.getFiles().size();
+                } else {
+                    if (fileListCache != null) {
+                        mojo.getMetrics().increment("fileListCache.misses", 1);
+                    }
+                    count = readFiles(response, consumer, fileListCache, cacheKey);
+                }
+            } finally {
+                response.close();
+            }
+        }
+        LOG.info("Received {} modified files from Gerrit.", count);
+        mojo.getMetrics().increment("files.modified", count);
+        mojo.getMetrics().time("gerrit.listFiles", start);
+        return count;
+    }
+
+    /**
+     * Reads the files from given response and stores them into given cache (if any).
+     */
+    private int readFiles(Response response,
+                          Consumer<String> consumer,
+                          FileListCache fileListCache,
+                          String cacheKey) throws MojoFailureException {
+        if (Response.Status.Family.SUCCESSFUL != response.getStatusInfo().getFamily()) {
+            Utils.logErrorAndThrow(LOG, MojoFailureException::new, "Received an error while listing files: " + response);
+        }
+
+        // the files are collected only to be cached
+        List<String> files = fileListCache == null ? null : new ArrayList<>();
+        Consumer<String> fileConsumer = files == null ? consumer : consumer.andThen(files::add);
+        int count = 0;
+        // the response is an object keyed by the files, only the keys are read, the values are skipped without parsing
+        try (JsonParser parser = JSON_FACTORY.createParser(response.readEntity(InputStream.class))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("The list of files is not an object", parser.getCurrentLocation());
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String file = parser.getCurrentName();
+                parser.nextToken();
+                parser.skipChildren();
+                if (!file.startsWith(MAGIC_FILE_PREFIX)) {
+                    LOG.debug("Modified file received from Gerrit: {}", file);
+                    fileConsumer.accept(file);
+                    ++count;
+                }
+            }
+        } catch (IOException | ProcessingException e) {
+            Utils.logErrorAndThrow(LOG, MojoFailureException::new, "Cannot read a response from: " + response, e);
+        }
+
+        if (fileListCache != null) {
+            try {
+                fileListCache.write(cacheKey, response.getHeaderString(HttpHeaders.ETAG), files);
+            } catch (IOException e) {
+                LOG.warn("Cannot cache the list of modified files.", e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the lines added or modified by the revision in given files. The diffs of the files are requested concurrently,
+     * bounded by the {@link AbstractJacocoGerritMojo#getMaxConnections() maximal number of connections}.
+     *
+     * @param files the files of the revision
+     * @return the changed lines of the new version of each file keyed by the file
+     */
+    public Map<String, LineRanges> listChangedLines(Collection<String> files) throws MojoFailureException {
+        Map<String, Future<LineRanges>> diffs = new LinkedHashMap<>();
+        for (String file : files) {
+            WebTarget diffTarget = target.path("files").path(encodeFileId(file)).path("diff");
+            diffs.put(file, gerritClient.submit(() -> readChangedLines(
+                    file, gerritClient.execute("reading the diff of file '" + file + "'", true,
+                                               () -> diffTarget.request().get()))));
+        }
+
+        Map<String, LineRanges> changedLines = new HashMap<>();
+        try {
+            for (Map.Entry<String, Future<LineRanges>> diff : diffs.entrySet()) {
+                LineRanges lineRanges = diff.getValue().get();
+                LOG.debug("Lines changed in file '{}': {}", diff.getKey(), lineRanges);
+                changedLines.put(diff.getKey(), lineRanges);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Utils.logErrorAndThrow(LOG, MojoFailureException::new, "Interrupted while reading the diffs of the files.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause()
+                    : e.getCause();
+            if (cause instanceof MojoFailureException) {
+                throw (MojoFailureException) cause;
+            }
+            Utils.logErrorAndThrow(LOG, MojoFailureException::new, "Cannot read the diffs of the files.", cause);
+        } finally {
+            diffs.values().forEach(diff -> diff.cancel(true));
+        }
+        mojo.getMetrics().increment("files.diffs", changedLines.size());
+        return changedLines;
+    }
+
+    private LineRanges readChangedLines(String file, Response response) throws MojoFailureException {
+        LineRanges lineRanges = new LineRanges();
+        try {
+            if (Response.Status.Family.SUCCESSFUL != response.getStatusInfo().getFamily()) {
+                Utils.logErrorAndThrow(LOG, MojoFailureException::new,
+                                       "Received an error while reading the diff of file '" + file + "': " + response);
+            }
+            JsonNode diff = response.readEntity(JsonNode.class);
+
+            // the content consists of sections of lines that are common, skipped or different for both sides
+            int line = 1;
+            for (JsonNode section : diff.path("content")) {
+                if (section.has("ab")) {
+                    line += section.get("ab").size();
+                } else if (section.has("skip")) {
+                    line += section.get("skip").asInt();
+                } else if (section.has("b")) {
+                    int count = section.get("b").size();
+                    lineRanges.add(line, line + count);
+                    line += count;
+                }
+            }
+        } catch (ProcessingException e) {
+            Utils.logErrorAndThrow(LOG, MojoFailureException::new, "Cannot read a response from: " + response, e);
+        } finally {
+            response.close();
+        }
+        return lineRanges;
+    }
+
+    private static String encodeFileId(String file) throws MojoFailureException {
+        try {
+            return URLEncoder.encode(file, StandardCharsets.UTF_8.name()).replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            Utils.logErrorAndThrow(LOG, MojoFailureException::new, "Cannot encode file name: " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Uploads the coverage of the revision. If the {@link AbstractJacocoGerritMojo#getUploadCache() upload cache} is enabled
+     * and the coverage of none of the files changed since the last upload, the upload is skipped. Otherwise, all the files
+     * are uploaded as setting the coverage replaces the previous one. The cache is used only if the revision is given by the
+     * SHA-1 of its commit (or across the revisions), a reference such as {@code current} may point to another revision the
+     * next time.
+     *
+     * @return {@code true} if the coverage was uploaded, {@code false} if the upload was skipped
+     */
+    public boolean setCoverage(PatchCoverageInput patchCoverageInput) throws MojoFailureException {
+
+        long start = System.nanoTime();
+        UploadCache uploadCache = commitId || mojo.isUploadCacheAcrossRevisions() ? mojo.getUploadCache() : null;
+        String cacheKey = null;
+        Map<String, String> hashes = null;
+        if (uploadCache != null) {
+            cacheKey = mojo.isUploadCacheAcrossRevisions()
+                    // the key of the change, i.e., of any of its revisions
+                    ? target.getUri().resolve(".") + "*/coverage"
+                    : target.path("coverage").getUri().toString();
+            hashes = UploadCache.hash(patchCoverageInput);
+            Map<String, String> uploaded = uploadCache.read(cacheKey);
+            if (hashes.equals(uploaded)) {
+                LOG.info("Coverage of {} files is the same as the uploaded one, skipping the upload.", hashes.size());
+                mojo.getMetrics().increment("uploadCache.hits", 1);
+                mojo.getMetrics().time("upload", start);
+                return false;
+            }
+            if (uploaded != null) {
+                long changed = hashes.entrySet().stream()
+                        .filter(hash -> !hash.getValue().equals(uploaded.get(hash.getKey())))
+                        .count();
+                LOG.info("Coverage of {} of {} files changed since the last upload.", changed, hashes.size());
+                mojo.getMetrics().increment("upload.filesChanged", changed);
+            }
+            mojo.getMetrics().increment("uploadCache.misses", 1);
+        }
+
+        long[] bytesWritten = new long[1];
+        StreamingOutput body = outputStream -> {
+            // the coverage is serialized as it's being sent, so the serialization time includes writing to the connection
+            long serializationStart = System.nanoTime();
+            CountingOutputStream countingStream = new CountingOutputStream(outputStream);
+            if (mojo.isGzipUpload()) {
+                GZIPOutputStream gzipStream = new GZIPOutputStream(countingStream, BUFFER_SIZE);
+                coverageJsonWriter.write(patchCoverageInput, gzipStream);
+                gzipStream.finish();
+            } else {
+                coverageJsonWriter.write(patchCoverageInput, countingStream);
+            }
+            bytesWritten[0] = countingStream.getCount();
+            mojo.getMetrics().time("serialization", serializationStart);
+        };
 
-            Response response = target.path("files").request().get();
+        Invocation.Builder request = target.path("coverage").request(MediaType.APPLICATION_JSON_TYPE);
+        request.property(ClientProperties.REQUEST_ENTITY_PROCESSING,
+                         mojo.isChunkedUpload() ? RequestEntityProcessing.CHUNKED : RequestEntityProcessing.BUFFERED);
+        // the content encoding is given by the entity variant, a request header would be overridden
+        Variant variant = new Variant(MediaType.APPLICATION_JSON_TYPE, (Locale) null, mojo.isGzipUpload() ? "gzip" : null);
+
+        // setting the coverage replaces the previous one, so the request is idempotent; the body is serialized again on retry
+        Response response = gerritClient.execute("setting the coverage", true,
+                                                  () -> request.post(Entity.entity(body, variant)));
+        try {
             if (Response.Status.Family.SUCCESSFUL != response.getStatusInfo().getFamily()) {
                 Utils.logErrorAndThrow(LOG, MojoFailureException::new,
-                                       "Received an error while listing files: " + response);
+                                       "Received an error while setting the coverage: " + response + readDetails(response));
             }
+        } finally {
+            response.close();
+        }
+        mojo.getMetrics().time("upload", start);
+        mojo.getMetrics().increment("upload.bytes", bytesWritten[0]);
+        LOG.debug("Sent {} bytes of coverage.", bytesWritten[0]);
 
+        if (uploadCache != null) {
             try {
-                JsonNode object = response.readEntity(JsonNode.class);
-
-                Iterable<Map.Entry<String, JsonNode>> iterable = object::fields;
-                StreamSupport.stream(iterable.spliterator(), false)
-                        .filter(stringJsonNodeEntry -> !COMMIT_MSG.equals(stringJsonNodeEntry.getKey()))
-                        .map(Map.Entry::getKey)
-                        .peek(s -> LOG.info("Modified file received from Gerrit: {}", s))
-                        .forEachOrdered(gerritFileList::add);
-            } catch (ProcessingException e) {
-                Utils.logErrorAndThrow(LOG, MojoFailureException::new, "Cannot read a response from: " + response, e);
+                uploadCache.write(cacheKey, hashes);
+            } catch (IOException e) {
+                LOG.warn("Cannot cache the hashes of the uploaded coverage.", e);
             }
         }
-        return Collections.unmodifiableList(gerritFileList);
+        return true;
+    }
+
+    private static String readDetails(Response response) {
+        try {
+            String details = response.readEntity(String.class);
+            return details == null || details.isEmpty() ? "" : ", details: " + details.trim();
+        } catch (ProcessingException | IllegalStateException e) {
+            LOG.debug("Cannot read the details of the response.", e);
+            return "";
+        }
     }
 
-    public void setCoverage(PatchCoverageInput patchCoverageInput) throws MojoFailureException {
+    /**
+     * The OutputStream counting the bytes written.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        private long count;
 
-        Response response = target.path("coverage").request().post(Entity.json(patchCoverageInput));
-        response.close();
-        if (Response.Status.Family.SUCCESSFUL != response.getStatusInfo().getFamily()) {
-            Utils.logErrorAndThrow(LOG, MojoFailureException::new,
-                                   "Received an error while setting the coverage: " + response);
+        CountingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+
+        long getCount() {
+            return count;
         }
     }
 
+    /**
+     * The XSSFilter strips the {@code )]}'} prefix protecting the JSON responses of Gerrit against XSSI from the stream of the
+     * response. The bytes are compared directly, they are not decoded.
+     */
     public static class XSSFilter implements ReaderInterceptor {
-        private static final String XSS_PREFIX = ")]}'";
+        private static final byte[] XSS_PREFIX = {')', ']', '}', '\''};
 
         @Override
         public Object aroundReadFrom(ReaderInterceptorContext readerInterceptorContext)
                 throws IOException, WebApplicationException {
-            InputStream inputStream = new BufferedInputStream(readerInterceptorContext.getInputStream());
-            byte[] buffer = new byte[XSS_PREFIX.getBytes().length + 1];
-            inputStream.mark(buffer.length);
-            for (int total = 0, read = 0; read != -1 && total < buffer.length; total += read) {
-                read = inputStream.read(buffer);
+            PushbackInputStream inputStream = new PushbackInputStream(readerInterceptorContext.getInputStream(),
+                                                                      XSS_PREFIX.length);
+            byte[] buffer = new byte[XSS_PREFIX.length];
+            int total = 0;
+            while (total < buffer.length) {
+                int read = inputStream.read(buffer, total, buffer.length - total);
+                if (read == -1) {
+                    break;
+                }
+                total += read;
             }
-            if (!new String(buffer).startsWith(XSS_PREFIX)) {
-                inputStream.reset();
+            if (total < buffer.length || !Arrays.equals(buffer, XSS_PREFIX)) {
+                inputStream.unread(buffer, 0, total);
             }
             readerInterceptorContext.setInputStream(inputStream);
             return readerInterceptorContext.proceed();
         }
-
     }
 
 }
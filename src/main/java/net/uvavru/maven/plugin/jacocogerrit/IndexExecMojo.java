@@ -0,0 +1,52 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The IndexExecMojo converts the exec files (see {@link #getExecFiles()}) into a single {@link ExecStore execution data
+ * store}. The store can be then given as the exec file of the other goals; only the execution data of the classes of the
+ * patchset is read from it, so it pays off for large exec files that are evaluated many times (such as the exec file of a
+ * nightly test run).
+ */
+@Mojo(name = "index-exec", defaultPhase = LifecyclePhase.INITIALIZE, aggregator = true, requiresDirectInvocation = true)
+public class IndexExecMojo extends JacocoGerritMojo {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexExecMojo.class);
+
+    /**
+     * The execution data store to write.
+     */
+    @Parameter(property = "jacoco-gerrit.execStoreFile", defaultValue = "${project.build.directory}/jacoco-gerrit/jacoco.jgx")
+    private File execStoreFile;
+
+    @Override
+    public void execute() throws MojoFailureException {
+        long start = System.nanoTime();
+        ExecutionDataStore executionData;
+        try {
+            ExecDataLoader execDataLoader = new ExecDataLoader(this);
+            List<File> execFiles = execDataLoader.resolveExecFiles();
+            executionData = execDataLoader.load(execFiles, null);
+            try {
+                ExecStore.write(executionData, execStoreFile);
+            } catch (IOException e) {
+                Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                       "Cannot write the execution data store: " + execStoreFile, e);
+            }
+        } finally {
+            finish(start);
+        }
+
+        LOGGER.info("Execution data of {} classes written to: {}", executionData.getContents().size(), execStoreFile);
+    }
+}
@@ -1,11 +1,11 @@
 package net.uvavru.maven.plugin.jacocogerrit;
 
 import java.io.File;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
-
-import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
@@ -19,7 +19,7 @@ import org.slf4j.LoggerFactory;
  */
 @Mojo(name = "jacoco-to-gerrit", defaultPhase = LifecyclePhase.INITIALIZE, aggregator = true, requiresDirectInvocation = true,
       requiresOnline = true)
-public class JacocoGerritMojo extends AbstractMojo {
+public class JacocoGerritMojo extends AbstractJacocoGerritMojo {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JacocoGerritMojo.class);
 
@@ -32,161 +32,276 @@ public class JacocoGerritMojo extends AbstractMojo {
     private File execFile;
 
     /**
-     * The hostname (or IP address) of Gerrit instance.
+     * The jacoco exec files to read the coverage probes from, such as {@code **&#47;target/jacoco*.exec}. The items are paths or
+     * glob patterns resolved against the basedir of the project. All the matching files are read concurrently and merged in
+     * memory, so there is no need to run {@code jacoco:merge} beforehand. If set, {@link #execFile} is ignored.
      */
-    @Parameter(name = "host", property = "gerrit.host", required = true)
-    private String host;
+    @Parameter(name = "execFiles", property = "jacoco.execFiles")
+    private List<String> execFiles;
 
     /**
-     * The port where the REST API of Gerrit is accessible. (e.g., the port where the website runs, such as {@code 8080}).
+     * The endpoints ({@code host:port}) of JaCoCo agents running in {@code tcpserver} mode, such as the agents of the
+     * application under integration tests. A dump is requested from all the agents concurrently and the execution data is read
+     * straight from the connections, without writing an exec file. The connections are bounded by the {@code connectTimeout}
+     * and the {@code readTimeout}, so an agent that doesn't respond fails the run rather than blocking it. If set, {@link
+     * #execFile} is ignored; the {@link #execFiles} are still read.
      */
-    @Parameter(name = "port", property = "gerrit.port", required = true)
-    private Integer port;
+    @Parameter(property = "jacoco-gerrit.agents")
+    private List<String> agents;
 
     /**
-     * The URI scheme (such as {@code http} or {@code https}).
+     * Set this option to {@code true} to reset the execution data of the {@link #agents} once it's dumped.
      */
-    @Parameter(name = "scheme", property = "gerrit.scheme", defaultValue = "http")
-    private String scheme;
+    @Parameter(property = "jacoco-gerrit.agentReset", defaultValue = "false")
+    private boolean agentReset;
 
     /**
-     * The username to use to access Gerrit REST API. This user needs enabled HTTP access (<i>Settings</i> -> <i>HTTP
-     * Password</i>
-     * -> <i>Generate HTTP password</i>).
+     * The files modified by the revision, relative to the basedir of the project. If set, the list of the modified files is not
+     * read from Gerrit, which allows computing the coverage without access to Gerrit (see the {@code analyze} goal). The list
+     * can be obtained, e.g., by {@code git diff --name-only HEAD~1}.
      */
-    @Parameter(name = "username", property = "gerrit.username")
-    private String username;
+    @Parameter(property = "jacoco-gerrit.changedFiles")
+    private List<String> changedFiles;
+
+    // for troubleshooting
 
     /**
-     * The password for HTTP access of user {@link #username}.
+     * Set this option to {@code true} if there are files in the Gerrit review request that do not exist in the project. This
+     * does not apply for file that were deleted in the current patchset. This option is for troubleshooting and should be
+     * enabled only if and only if one experiences {@link java.io.FileNotFoundException} with message {@code Files not found, use
+     * 'overrideSourceFileNotFoundError' to override this error}.
      */
-    @Parameter(name = "password", property = "gerrit.password")
-    private String password;
+    @Parameter(property = "jacoco-gerrit.overrideSourceFileNotFoundError", defaultValue = "false")
+    private boolean overrideSourceFileNotFoundError;
 
     /**
-     * The basepath (contextroot) where Gerrit is accessible at given {@link #host}, {@link #port}.
+     * Set this option to {@code true} not to fail if the class files of some of the mapped classes are not the ones the
+     * execution data was recorded for (e.g., the classes were recompiled after the tests ran). Such classes are left out of the
+     * analysis and listed in the log, and the coverage of the other classes is uploaded.
      */
-    @Parameter(name = "basePath", property = "gerrit.basePath", defaultValue = "/")
-    private String basePath;
+    @Parameter(property = "jacoco-gerrit.skipMismatchedClasses", defaultValue = "false")
+    private boolean skipMismatchedClasses;
 
-    // dynamic settings, usually changes per each review request
+    /**
+     * Set this option to {@code true} to upload the coverage of the lines added or modified by the patchset only. The diff of
+     * each file is read from Gerrit. By default, the coverage of all the lines of the modified files is uploaded.
+     */
+    @Parameter(property = "jacoco-gerrit.changedLinesOnly", defaultValue = "false")
+    private boolean changedLinesOnly;
+
+    // performance tuning
 
     /**
-     * The project name of the review request.
+     * Set this option to {@code false} to analyze all the class files in the output directories of the modules touched by the
+     * patchset. By default, only the class files compiled from the modified source files (i.e., the ones whose {@code
+     * SourceFile} attribute names the source file, see {@link #classIndexCache}) are analyzed.
      */
-    @Parameter(name = "projectName", property = "gerrit.projectName", defaultValue = "${env.GERRIT_PROJECT}", required = true)
-    private String projectName;
+    @Parameter(property = "jacoco-gerrit.targetedAnalysis", defaultValue = "true")
+    private boolean targetedAnalysis = true;
 
     /**
-     * The branch of the review request.
+     * The number of threads used to analyze the class files. Output directories of the modules (and large batches of classes
+     * within a module) are analyzed in parallel. Values lower than {@code 1} stand for the number of available processors.
      */
-    @Parameter(name = "branchName", property = "gerrit.branchName", defaultValue = "${env.GERRIT_BRANCH}")
-    private String branchName = "master";
+    @Parameter(property = "jacoco-gerrit.analysisThreads", defaultValue = "0")
+    private int analysisThreads;
 
     /**
-     * The change ID of the review request. (This is the unique id assigned to each review request, usually stored in the commit
-     * message; such as {@code I1d07ca1b78eb2409006c0e8809844ad940708d47})
+     * The maximal number of classes of a single module analyzed as one unit of work by {@link #analysisThreads}. Applies only
+     * for {@link #targetedAnalysis}.
      */
-    @Parameter(name = "changeId", property = "gerrit.changeId", defaultValue = "${env.GERRIT_CHANGE_ID}", required = true)
-    private String changeId;
+    @Parameter(property = "jacoco-gerrit.analysisBatchSize", defaultValue = "64")
+    private int analysisBatchSize = 64;
 
     /**
-     * The Git revision ID (hash) in the full format of the git commit to test. (e.g., {@code
-     * 9cb2813f170e5140e4457fe9089cfe678d905fc4})
+     * Set this option to {@code false} to keep the execution data of all the classes found in the exec file in memory. By
+     * default, only the execution data of the classes related to the patchset are kept while the exec file is read.
      */
-    @Parameter(name = "revisionId", property = "gerrit.revisionId", defaultValue = "${env.GERRIT_PATCHSET_REVISION}", required
-            = true)
-    private String revisionId;
+    @Parameter(property = "jacoco-gerrit.filterExecData", defaultValue = "true")
+    private boolean filterExecData = true;
 
-    // implicit, set by maven
+    /**
+     * Set this option to {@code true} to read the exec files through memory mapped buffers instead of streams.
+     */
+    @Parameter(property = "jacoco-gerrit.memoryMapExecFiles", defaultValue = "false")
+    private boolean memoryMapExecFiles;
 
-    @Parameter(defaultValue = "${project}", readonly = true, required = true)
-    private MavenProject project;
+    /**
+     * Set this option to {@code false} to disable the on-disk cache of the analysis results. The cache keeps the line coverage
+     * of each analyzed class keyed by the checksum of the class file and the hash of its probes so that classes unchanged
+     * since the previous run (e.g., of the previous patchset) don't need to be analyzed again. Applies only for {@link
+     * #targetedAnalysis}.
+     */
+    @Parameter(property = "jacoco-gerrit.analysisCache", defaultValue = "true")
+    private boolean analysisCache = true;
 
-    // for troubleshooting
+    /**
+     * The directory of the analysis cache. It can be shared by more builds (e.g., of all the patchsets of a change).
+     */
+    @Parameter(property = "jacoco-gerrit.analysisCacheDirectory",
+               defaultValue = "${project.build.directory}/jacoco-gerrit/analysis-cache")
+    private File analysisCacheDirectory;
 
     /**
-     * Set this option to {@code true} if there are files in the Gerrit review request that do not exist in the project. This
-     * does not apply for file that were deleted in the current patchset. This option is for troubleshooting and should be
-     * enabled only if and only if one experiences {@link java.io.FileNotFoundException} with message {@code Files not found, use
-     * 'overrideSourceFileNotFoundError' to override this error}.
+     * The maximal size of the analysis cache in megabytes. The least recently used entries are evicted when exceeded.
      */
-    @Parameter(property = "jacoco-gerrit.overrideSourceFileNotFoundError", defaultValue = "false")
-    private boolean overrideSourceFileNotFoundError;
+    @Parameter(property = "jacoco-gerrit.analysisCacheMaxSize", defaultValue = "256")
+    private int analysisCacheMaxSize = 256;
+
+    /**
+     * Set this option to {@code true} to analyze the classes packaged in the archives of the modules (see {@link #classArchives})
+     * even if the output directories of the modules exist. By default, the archive of a module is used only if its output
+     * directory doesn't exist, e.g., in a separate stage of a pipeline where only the built artifacts are restored.
+     */
+    @Parameter(property = "jacoco-gerrit.classesFromArchives", defaultValue = "false")
+    private boolean classesFromArchives;
+
+    /**
+     * The archives of the classes of the modules keyed by the artifact IDs of the modules. By default, the archive of a module
+     * is its packaged artifact, i.e., {@code target/${project.build.finalName}.jar}. Only the entries of the classes compiled
+     * from the modified source files are read from the archives.
+     */
+    @Parameter
+    private Map<String, File> classArchives;
+
+    /**
+     * Set this option to {@code false} not to store the index of the class files on disk. The source files are mapped to the
+     * class files by an index of the names and the {@code SourceFile} attributes of all the class files of each output
+     * directory. When stored, the index is updated incrementally by the next run, i.e., only the class files whose timestamp
+     * or size changed are read again.
+     */
+    @Parameter(property = "jacoco-gerrit.classIndexCache", defaultValue = "true")
+    private boolean classIndexCache = true;
+
+    /**
+     * The directory to store the indexes of the class files in.
+     */
+    @Parameter(property = "jacoco-gerrit.classIndexDirectory",
+               defaultValue = "${project.build.directory}/jacoco-gerrit/class-index")
+    private File classIndexDirectory;
+
+    /**
+     * The maximal time in seconds to wait for the coverage to be computed (including the communication with Gerrit).
+     */
+    @Parameter(property = "jacoco-gerrit.timeout", defaultValue = "1800")
+    private int timeout = 1800;
 
     @Override
     public void execute() throws MojoFailureException {
+        checkRevisionParameters();
+
+        long start = System.nanoTime();
+        boolean uploaded;
+        try {
+            uploaded = new CoveragePipeline(this).run();
+        } finally {
+            finish(start);
+        }
+
+        if (uploaded) {
+            LOGGER.info("Test coverage successfully posted to Gerrit.");
+        } else {
+            LOGGER.info("Test coverage unchanged, upload skipped.");
+        }
+    }
 
-        GerritFacade gerritFacade = new GerritFacade(this);
-        SourceFilesMapper sourceFilesMapper = new SourceFilesMapper(this);
-        JacocoReader jacocoReader = new JacocoReader(this);
+    public List<String> getChangedFiles() {
+        return changedFiles;
+    }
 
-        LOGGER.info("Mapping source files modified in the patchset to compiled classes.");
-        Map<String, Map<String, String>> stringMapMap = sourceFilesMapper
-                .calculateMapping(gerritFacade.listFiles());
+    /**
+     * @return the directory the paths of the modified files are relative to, i.e., the root of the repository
+     */
+    public File getSourceBasedir() {
+        return getProject().getBasedir();
+    }
 
-        LOGGER.info("Reading JaCoCo coverage data.");
-        PatchCoverageInput patchCoverageInput = jacocoReader.readCoverage(stringMapMap);
+    /**
+     * @return the projects whose source files are mapped to the classes, i.e., the project and all its collected projects
+     */
+    public List<MavenProject> getMappedProjects() {
+        return Stream.concat(Stream.of(getProject()), getProject().getCollectedProjects().stream())
+                .collect(Collectors.toList());
+    }
 
-        LOGGER.info("Uploading the coverage to Gerrit.");
-        gerritFacade.setCoverage(patchCoverageInput);
+    public File getExecFile() {
+        return execFile;
+    }
 
-        LOGGER.info("Test coverage successfully posted to Gerrit.");
+    public List<String> getExecFiles() {
+        return execFiles;
     }
 
-    public boolean isAnonymous() {
-        return username == null && password == null;
+    public List<String> getAgents() {
+        return agents;
     }
 
-    public String getHost() {
-        return host;
+    public boolean isAgentReset() {
+        return agentReset;
     }
 
-    public String getScheme() {
-        return scheme;
+    public boolean isOverrideSourceFileNotFoundError() {
+        return overrideSourceFileNotFoundError;
     }
 
-    public Integer getPort() {
-        return port;
+    public boolean isSkipMismatchedClasses() {
+        return skipMismatchedClasses;
     }
 
-    public String getUsername() {
-        return username;
+    public boolean isTargetedAnalysis() {
+        return targetedAnalysis;
     }
 
-    public String getPassword() {
-        return password;
+    public int getAnalysisThreads() {
+        return analysisThreads < 1 ? Runtime.getRuntime().availableProcessors() : analysisThreads;
     }
 
-    public String getBasePath() {
-        return basePath;
+    public int getAnalysisBatchSize() {
+        return analysisBatchSize;
     }
 
-    public String getProjectName() {
-        return projectName;
+    public boolean isFilterExecData() {
+        return filterExecData;
     }
 
-    public String getBranchName() {
-        return branchName;
+    public boolean isMemoryMapExecFiles() {
+        return memoryMapExecFiles;
     }
 
-    public String getChangeId() {
-        return changeId;
+    public boolean isChangedLinesOnly() {
+        return changedLinesOnly;
     }
 
-    public String getRevisionId() {
-        return revisionId;
+    public boolean isAnalysisCache() {
+        return analysisCache;
     }
 
-    public File getExecFile() {
-        return execFile;
+    public File getAnalysisCacheDirectory() {
+        return analysisCacheDirectory;
     }
 
-    public MavenProject getProject() {
-        return project;
+    public int getAnalysisCacheMaxSize() {
+        return analysisCacheMaxSize;
     }
 
-    public boolean isOverrideSourceFileNotFoundError() {
-        return overrideSourceFileNotFoundError;
+    public boolean isClassesFromArchives() {
+        return classesFromArchives;
+    }
+
+    public Map<String, File> getClassArchives() {
+        return classArchives;
+    }
+
+    public boolean isClassIndexCache() {
+        return classIndexCache;
+    }
+
+    public File getClassIndexDirectory() {
+        return classIndexDirectory;
+    }
+
+    public int getTimeout() {
+        return timeout;
     }
+
 }
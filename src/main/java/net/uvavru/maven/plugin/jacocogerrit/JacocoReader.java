@@ -2,16 +2,38 @@ package net.uvavru.maven.plugin.jacocogerrit;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
 
 import org.apache.maven.plugin.MojoFailureException;
 import org.jacoco.core.analysis.Analyzer;
-import org.jacoco.core.analysis.IClassCoverage;
 import org.jacoco.core.analysis.ICounter;
-import org.jacoco.core.analysis.ILine;
-import org.jacoco.core.tools.ExecFileLoader;
+import org.jacoco.core.analysis.ICoverageVisitor;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.internal.data.CRC64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +42,7 @@ import org.slf4j.LoggerFactory;
  */
 public class JacocoReader {
     private static final Logger LOGGER = LoggerFactory.getLogger(JacocoReader.class);
+    private static final String CLASS_SUFFIX = ".class";
 
     private final JacocoGerritMojo mojo;
 
@@ -28,97 +51,439 @@ public class JacocoReader {
     }
 
     public PatchCoverageInput readCoverage(Map<String, Map<String, String>> scanMap) throws MojoFailureException {
+        return readCoverage(scanMap, null);
+    }
 
-        PatchCoverageInput result = new PatchCoverageInput();
-        ExecFileLoader execFileLoader = new ExecFileLoader();
-        try {
-            execFileLoader.load(mojo.getExecFile());
-        } catch (IOException e) {
-            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Cannot read JaCoCo exec file: " + mojo.getExecFile(), e);
-        }
+    /**
+     * Reads the coverage of the classes from given {@code scanMap}.
+     *
+     * @param scanMap      the mapping as calculated by {@link SourceFilesMapper#calculateMapping(List)}
+     * @param changedLines the lines to report coverage for keyed by the source file path; or {@code null} to report all the
+     *                     lines of the classes
+     */
+    public PatchCoverageInput readCoverage(Map<String, Map<String, String>> scanMap,
+                                           Map<String, LineRanges> changedLines) throws MojoFailureException {
+        ExecDataLoader execDataLoader = new ExecDataLoader(mojo);
+        return readCoverage(scanMap, loadExecutionData(execDataLoader.resolveExecFiles(), scanMap), changedLines);
+    }
+
+    /**
+     * Loads the execution data of the classes from given {@code scanMap}.
+     *
+     * @param execFiles the exec files to read
+     * @param scanMap   the mapping of the classes to keep the execution data of; or {@code null} to keep all the execution data
+     */
+    public ExecutionDataStore loadExecutionData(List<File> execFiles,
+                                                Map<String, Map<String, String>> scanMap) throws MojoFailureException {
+        return new ExecDataLoader(mojo).load(execFiles, classNames(scanMap));
+    }
 
-        scanMap.forEach((dirToScan, stringMap) -> {
+    /**
+     * Reads the coverage of the classes from given {@code mapping} using already loaded execution data.
+     *
+     * @param mapping            the mapping as calculated by {@link SourceFilesMapper#calculateMapping(List)}
+     * @param executionDataStore the execution data as loaded by {@link #loadExecutionData(List, Map)}
+     * @param changedLines       the lines to report coverage for keyed by the source file path; or {@code null} to report all
+     *                           the lines of the classes
+     */
+    public PatchCoverageInput readCoverage(Map<String, Map<String, String>> mapping,
+                                           ExecutionDataStore executionDataStore,
+                                           Map<String, LineRanges> changedLines) throws MojoFailureException {
 
-            try {
-                new Analyzer(execFileLoader.getExecutionDataStore(), coverage -> {
+        // Map<DirToScan, Map<ClassName, ClassFile>>
+        Map<String, Map<String, ClassFile>> classFiles = verifyClassIds(mapping, executionDataStore);
+        AnalysisCache analysisCache = mojo.isTargetedAnalysis() && mojo.isAnalysisCache()
+                ? new AnalysisCache(mojo.getAnalysisCacheDirectory().toPath(), mojo.getAnalysisCacheMaxSize() * 1024L * 1024L)
+                : null;
+
+        List<Callable<PatchCoverageInput>> tasks = new ArrayList<>();
+        mapping.forEach((dirToScan, stringMap) -> {
+            Map<String, ClassFile> verified = classFiles.get(dirToScan);
+            if (mojo.isTargetedAnalysis()) {
+                // large modules are split into batches of classes so that they don't end up analyzed by a single thread
+                List<String> classNames = new ArrayList<>(new TreeSet<>(verified.keySet()));
+                int batchSize = Math.max(1, mojo.getAnalysisBatchSize());
+                for (int from = 0; from < classNames.size(); from += batchSize) {
+                    List<String> batch = classNames.subList(from, Math.min(from + batchSize, classNames.size()));
+                    tasks.add(() -> analyze(executionDataStore, analysisCache, dirToScan, stringMap, verified, changedLines,
+                                            batch));
+                }
+            } else {
+                tasks.add(() -> analyze(executionDataStore, analysisCache, dirToScan, stringMap, verified, changedLines,
+                                        null));
+            }
+        });
 
-                    // InnerClasses are mapped to their wrapping classes
-                    String key = coverage.getName().contains("$")
-                            ? coverage.getName().substring(0, coverage.getName().indexOf('$'))
-                            : coverage.getName();
+        PatchCoverageInput result = execute(tasks);
+        if (analysisCache != null) {
+            mojo.getMetrics().increment("analysisCache.hits", analysisCache.getHits());
+            mojo.getMetrics().increment("analysisCache.misses", analysisCache.getMisses());
+            analysisCache.evict();
+        }
+        return result;
+    }
 
-                    if (!stringMap.containsKey(key)) {
-                        LOGGER.debug("Skipping class '{}' because it wasn't found among classes to analyze.",
-                                     coverage.getName());
-                        return;
+    /**
+     * Reads the class files of the mapped classes and compares their ids (i.e., the checksums) with the ids of their execution
+     * data before any class is analyzed. If the execution data of a class was recorded for a different class file (e.g., the
+     * class was recompiled after the tests ran), the run fails right away, or the class is left out of the analysis if
+     * {@link JacocoGerritMojo#isSkipMismatchedClasses() mismatched classes are skipped}.
+     *
+     * @return the read class files of the classes to analyze keyed by the output directory (or archive) and the class name,
+     * so that the analysis doesn't read and hash them again
+     */
+    private Map<String, Map<String, ClassFile>> verifyClassIds(Map<String, Map<String, String>> mapping,
+                                                               ExecutionDataStore executionDataStore)
+            throws MojoFailureException {
+        long start = System.nanoTime();
+        Map<String, Map<String, ClassFile>> classFiles = new HashMap<>();
+        // Map<DirToScan, MismatchedClassNames>
+        Map<String, Set<String>> mismatched = new TreeMap<>();
+        for (Map.Entry<String, Map<String, String>> entry : mapping.entrySet()) {
+            Map<String, ClassFile> verified = new HashMap<>();
+            classFiles.put(entry.getKey(), verified);
+            Path classesLocation = Paths.get(entry.getKey());
+            try (ZipFile archive = Files.isRegularFile(classesLocation) ? new ZipFile(classesLocation.toFile()) : null) {
+                for (String className : entry.getValue().keySet()) {
+                    byte[] classBytes = readClass(classesLocation, archive, className + CLASS_SUFFIX);
+                    if (classBytes == null) {
+                        LOGGER.debug("No class file found for class '{}' in '{}'.", className, entry.getKey());
+                        continue;
+                    }
+                    // the same id as the one computed by the Analyzer
+                    long classId = CRC64.checksum(classBytes);
+                    // a class without execution data is just not covered
+                    if (executionDataStore.get(classId) == null && executionDataStore.contains(className)) {
+                        mismatched.computeIfAbsent(entry.getKey(), dir -> new TreeSet<>()).add(className);
+                    } else {
+                        verified.put(className, new ClassFile(classBytes, classId));
                     }
+                }
+            } catch (IOException e) {
+                Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                       "Cannot read the class files of: " + entry.getKey(), e);
+            }
+        }
+        mojo.getMetrics().time("classIdCheck", start);
+        if (mismatched.isEmpty()) {
+            return classFiles;
+        }
+
+        StringBuilder report = new StringBuilder();
+        mismatched.forEach((dirToScan, classNames) -> classNames.forEach(
+                className -> report.append(System.lineSeparator()).append("  ").append(className)
+                        .append(" (source file '").append(mapping.get(dirToScan).get(className))
+                        .append("', directory '").append(dirToScan).append("')")));
+        int count = mismatched.values().stream().mapToInt(Set::size).sum();
+        mojo.getMetrics().increment("classes.mismatched", count);
+        if (!mojo.isSkipMismatchedClasses()) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                   "The class files of " + count + " classes have different checksums than the execution"
+                                           + " data. It looks like the classes were recompiled after the JaCoCo analysis was"
+                                           + " run! Set 'skipMismatchedClasses' to upload the coverage of the other classes."
+                                           + report);
+        }
+        LOGGER.warn("Skipping {} classes whose class files have different checksums than the execution data, the coverage of"
+                            + " their source files is partial:{}", count, report);
+        return classFiles;
+    }
+
+    /**
+     * @return the VM names of the classes to analyze or {@code null} if the execution data of all the classes is to be kept
+     */
+    private Set<String> classNames(Map<String, Map<String, String>> scanMap) {
+        if (!mojo.isFilterExecData() || scanMap == null) {
+            return null;
+        }
+        Set<String> classNames = new HashSet<>();
+        scanMap.values().forEach(stringMap -> classNames.addAll(stringMap.keySet()));
+        return classNames;
+    }
 
-                    String filePath = stringMap.get(key);
+    /**
+     * Executes the analysis tasks and merges their results in the order of the tasks so that the result is the same as if the
+     * tasks were executed sequentially.
+     */
+    private PatchCoverageInput execute(List<Callable<PatchCoverageInput>> tasks) throws MojoFailureException {
+        PatchCoverageInput result = new PatchCoverageInput();
+        int threads = Math.min(mojo.getAnalysisThreads(), tasks.size());
 
-                    LOGGER.info("Setting coverage for class: '{}', source: '{}'", coverage.getName(), filePath);
+        if (threads <= 1) {
+            for (Callable<PatchCoverageInput> task : tasks) {
+                result.merge(call(task));
+            }
+            return result;
+        }
 
-                    if (coverage.isNoMatch()) {
-                        // testing against different bytecode
-                        Utils.logErrorAndThrow(LOGGER, IllegalStateException::new, "The class file identified as '" + coverage
-                                .getName() + "' found in directory '" + dirToScan + "', which is mapped to source file '" +
-                                filePath +
-                                "', has different checksum."
-                                + " It looks like "
-                                + "the class was recompiled after the JaCoCo analysis was "
-                                + "run!");
+        LOGGER.debug("Analyzing {} batches of classes using {} threads.", tasks.size(), threads);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<PatchCoverageInput>> futures = tasks.stream()
+                    .map(pool::submit)
+                    .collect(Collectors.toList());
+            for (ForkJoinTask<PatchCoverageInput> future : futures) {
+                try {
+                    result.merge(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Interrupted while analyzing classes.", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
                     }
+                    Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "An error occurred during analysis.",
+                                           e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    private static PatchCoverageInput call(Callable<PatchCoverageInput> task) throws MojoFailureException {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "An error occurred during analysis.", e);
+            return null;
+        }
+    }
 
-                    for (int line = coverage.getFirstLine(); line <= coverage.getLastLine(); ++line) {
-                        ILine coverageLine = coverage.getLine(line);
-                        ICounter branchCounter = coverageLine.getBranchCounter();
-                        ICounter instructionCounter = coverageLine.getInstructionCounter();
+    /**
+     * Analyzes given classes (or the whole directory if {@code classNames} is {@code null}) into a new
+     * {@link PatchCoverageInput}. Only the mapped classes whose class files were verified are analyzed.
+     *
+     * @param classFiles the verified class files of the mapped classes as read by {@link #verifyClassIds(Map,
+     *                   ExecutionDataStore)}
+     */
+    private PatchCoverageInput analyze(ExecutionDataStore executionDataStore,
+                                       AnalysisCache analysisCache,
+                                       String dirToScan,
+                                       Map<String, String> stringMap,
+                                       Map<String, ClassFile> classFiles,
+                                       Map<String, LineRanges> changedLines,
+                                       Collection<String> classNames) {
+        long start = System.nanoTime();
+        // classes scanned, classes matched, lines emitted
+        long[] counts = new long[3];
+        PatchCoverageInput result = new PatchCoverageInput();
+        ICoverageVisitor visitor = coverage -> {
 
-                        report(coverage, line, coverageLine);
+            ++counts[0];
+            String filePath = filePath(stringMap, coverage.getName());
+            if (filePath == null) {
+                return;
+            }
+            ++counts[1];
+            counts[2] += setLineCoverage(result, filePath, ClassLineCoverage.of(coverage), changedLines);
+        };
 
-                        if (coverageLine.getStatus() == ICounter.EMPTY) {
-                            // line was not analyzed
+        try {
+            Path classesLocation = Paths.get(dirToScan);
+            boolean packaged = Files.isRegularFile(classesLocation);
+            // the mapped classes are already read, the archive is needed only to analyze all its classes
+            try (ZipFile archive = packaged && classNames == null ? new ZipFile(classesLocation.toFile()) : null) {
+                for (String className : classNames == null ? listClasses(classesLocation, archive) : classNames) {
+                    String location = packaged
+                            ? dirToScan + "!/" + className + CLASS_SUFFIX
+                            : classesLocation.resolve(className + CLASS_SUFFIX).toString();
+                    ClassFile classFile = classFiles.get(className);
+                    if (classFile == null) {
+                        // the mapped class is either missing or mismatched, see verifyClassIds
+                        if (stringMap.containsKey(className)) {
                             continue;
                         }
-
-                        result.setLineCoverage(filePath, line,
-                                               instructionCounter.getCoveredCount() == 0 ? 0 : 1,
-                                               branchCounter.getTotalCount(),
-                                               branchCounter.getCoveredCount()
-                        );
+                        byte[] classBytes = readClass(classesLocation, archive, className + CLASS_SUFFIX);
+                        if (classBytes == null) {
+                            continue;
+                        }
+                        classFile = new ClassFile(classBytes, CRC64.checksum(classBytes));
                     }
-                }).analyzeAll(new File(dirToScan));
-            } catch (IOException e) {
-                throw new IllegalStateException("An error occurred during analysis of directory: " + dirToScan, e);
+                    if (analysisCache == null) {
+                        new Analyzer(executionDataStore, visitor).analyzeClass(classFile.bytes, location);
+                        continue;
+                    }
+                    ClassLineCoverage cached = analyzeCached(executionDataStore, analysisCache, classFile.bytes,
+                                                             classFile.id, location);
+                    if (cached == null) {
+                        continue;
+                    }
+                    ++counts[0];
+                    String filePath = filePath(stringMap, cached.getName());
+                    if (filePath != null) {
+                        ++counts[1];
+                        counts[2] += setLineCoverage(result, filePath, cached, changedLines);
+                    }
+                }
             }
-        });
+        } catch (IOException e) {
+            throw new IllegalStateException("An error occurred during analysis of: " + dirToScan, e);
+        } finally {
+            Metrics metrics = mojo.getMetrics();
+            metrics.time("analysis.module[" + moduleName(dirToScan) + "]", start);
+            metrics.increment("classes.scanned", counts[0]);
+            metrics.increment("classes.matched", counts[1]);
+            metrics.increment("lines.emitted", counts[2]);
+        }
         return result;
     }
 
-    private void report(IClassCoverage coverage, int line, ILine coverageLine) {
+    /**
+     * @return the VM names of all the classes of given output directory (or archive, if not {@code null})
+     */
+    private static List<String> listClasses(Path classesLocation, ZipFile archive) throws IOException {
+        if (archive != null) {
+            return archive.stream()
+                    .map(ZipEntry::getName)
+                    .filter(name -> name.endsWith(CLASS_SUFFIX))
+                    .map(name -> name.substring(0, name.length() - CLASS_SUFFIX.length()))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        if (!Files.isDirectory(classesLocation)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> paths = Files.walk(classesLocation)) {
+            return paths.map(path -> classesLocation.relativize(path).toString().replace(File.separatorChar, '/'))
+                    .filter(name -> name.endsWith(CLASS_SUFFIX))
+                    .map(name -> name.substring(0, name.length() - CLASS_SUFFIX.length()))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return the content of given class file of given output directory (or archive, if not {@code null}); or {@code null} if
+     * there is no such class file
+     */
+    private static byte[] readClass(Path classesLocation, ZipFile archive, String classFile) throws IOException {
+        if (archive != null) {
+            ZipEntry entry = archive.getEntry(classFile);
+            return entry == null ? null : Utils.readEntry(archive, entry);
+        }
+        try {
+            return Files.readAllBytes(classesLocation.resolve(classFile));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the output directory (or archive) relative to the basedir of the project, if possible
+     */
+    private String moduleName(String dirToScan) {
+        Path basedir = mojo.getProject().getBasedir().toPath();
+        Path dir = Paths.get(dirToScan);
+        return dir.startsWith(basedir) ? basedir.relativize(dir).toString() : dirToScan;
+    }
+
+    /**
+     * Gets the coverage of given class from the cache or analyzes the class and caches the result.
+     *
+     * @param classId the id of the class, i.e., the checksum of its class file
+     * @return the coverage of the class or {@code null} if the class file contains no class
+     */
+    private static ClassLineCoverage analyzeCached(ExecutionDataStore executionDataStore,
+                                                   AnalysisCache analysisCache,
+                                                   byte[] classBytes,
+                                                   long classId,
+                                                   String location) throws IOException {
+        ExecutionData data = executionDataStore.get(classId);
+        String key = analysisCache.key(classId, data);
+        ClassLineCoverage coverage = analysisCache.get(key);
+        if (coverage == null) {
+            ClassLineCoverage[] analyzed = new ClassLineCoverage[1];
+            new Analyzer(executionDataStore, classCoverage -> analyzed[0] = ClassLineCoverage.of(classCoverage))
+                    .analyzeClass(classBytes, location);
+            coverage = analyzed[0];
+            if (coverage != null) {
+                analysisCache.put(key, coverage);
+            }
+        } else {
+            LOGGER.debug("Coverage of class '{}' found in the analysis cache.", coverage.getName());
+        }
+        return coverage;
+    }
+
+    /**
+     * @return the source file the class is mapped to or {@code null} if the class is not among the classes to analyze
+     */
+    private static String filePath(Map<String, String> stringMap, String className) {
+        String filePath = stringMap.get(className);
+        if (filePath == null) {
+            LOGGER.debug("Skipping class '{}' because it wasn't found among classes to analyze.", className);
+        } else {
+            LOGGER.info("Setting coverage for class: '{}', source: '{}'", className, filePath);
+        }
+        return filePath;
+    }
+
+    /**
+     * @return the number of lines set
+     */
+    private int setLineCoverage(PatchCoverageInput result,
+                                String filePath,
+                                ClassLineCoverage coverage,
+                                Map<String, LineRanges> changedLines) {
+        LineRanges ranges = changedLines == null ? null : changedLines.get(filePath);
+        if (changedLines != null && ranges == null) {
+            return 0;
+        }
+        int lines = 0;
+        for (int i = 0; i < coverage.size(); ++i) {
+            int line = coverage.getLine(i);
+            if (ranges != null && !ranges.contains(line)) {
+                continue;
+            }
+
+            report(coverage, i);
+
+            result.setLineCoverage(filePath, line,
+                                   coverage.getCoveredInstructions(i) == 0 ? 0 : 1,
+                                   coverage.getTotalBranches(i),
+                                   coverage.getCoveredBranches(i)
+            );
+            ++lines;
+        }
+        return lines;
+    }
+
+    private void report(ClassLineCoverage coverage, int index) {
         if (!LOGGER.isDebugEnabled()) {
             return;
         }
         String result = null;
-        switch (coverageLine.getStatus()) {
-        case ICounter.EMPTY:
-            result = "not analyzed";
-            break;
+        switch (coverage.getStatus(index)) {
         case ICounter.FULLY_COVERED:
             result = "covered";
             break;
         case ICounter.PARTLY_COVERED:
-            ICounter branchCounter = coverageLine.getBranchCounter();
-            result = "partial: " + branchCounter.getCoveredCount() + " out of " + branchCounter
-                    .getTotalCount() + " were covered";
+            result = "partial: " + coverage.getCoveredBranches(index) + " out of " + coverage.getTotalBranches(index)
+                    + " were covered";
             break;
         case ICounter.NOT_COVERED:
             result = "missed";
             break;
         default:
             Utils.logErrorAndThrow(LOGGER, IllegalStateException::new,
-                                   "Coverage line status not expected: " + coverageLine.getStatus());
+                                   "Coverage line status not expected: " + coverage.getStatus(index));
         }
-        LOGGER.debug("Class: {}:{} .. result: {}", coverage.getSourceFileName(), line, result);
+        LOGGER.debug("Class: {}:{} .. result: {}", coverage.getSourceFileName(), coverage.getLine(index), result);
     }
 
+    /**
+     * The ClassFile is the content of a class file read for the analysis together with its id.
+     */
+    private static final class ClassFile {
+        private final byte[] bytes;
+        private final long id;
+
+        ClassFile(byte[] bytes, long id) {
+            this.bytes = bytes;
+            this.id = id;
+        }
+    }
 }
@@ -0,0 +1,87 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.util.Arrays;
+
+/**
+ * The LineRanges is a set of lines kept as sorted, non-overlapping intervals of line numbers.
+ */
+public class LineRanges {
+
+    // interval i is [bounds[2 * i], bounds[2 * i + 1])
+    private int[] bounds = new int[8];
+    private int size;
+
+    /**
+     * Adds lines from {@code fromLine} (inclusive) to {@code toLine} (exclusive). The ranges have to be added in ascending
+     * order.
+     */
+    public void add(int fromLine, int toLine) {
+        if (fromLine >= toLine) {
+            return;
+        }
+        if (size > 0 && fromLine < bounds[2 * size - 2]) {
+            throw new IllegalArgumentException("Line ranges must be added in ascending order: " + fromLine);
+        }
+        if (size > 0 && fromLine <= bounds[2 * size - 1]) {
+            // adjacent or overlapping with the last range
+            bounds[2 * size - 1] = Math.max(bounds[2 * size - 1], toLine);
+            return;
+        }
+        if (2 * size + 2 > bounds.length) {
+            bounds = Arrays.copyOf(bounds, bounds.length * 2);
+        }
+        bounds[2 * size] = fromLine;
+        bounds[2 * size + 1] = toLine;
+        ++size;
+    }
+
+    public boolean contains(int line) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (bounds[2 * mid + 1] <= line) {
+                low = mid + 1;
+            } else if (bounds[2 * mid] > line) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of ranges
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the first line of range at given index
+     */
+    public int getFromLine(int index) {
+        return bounds[2 * index];
+    }
+
+    /**
+     * @return the line following the last line of range at given index
+     */
+    public int getToLine(int index) {
+        return bounds[2 * index + 1];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; ++i) {
+            builder.append(i == 0 ? "" : ", ").append(getFromLine(i)).append('-').append(getToLine(i) - 1);
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,115 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Metrics collects timers and counters of a run of the plugin, e.g., the time spent by the phases of the pipeline, the
+ * number of analyzed classes or the number of uploaded bytes. The metrics may be recorded concurrently.
+ * <p>
+ * The peak heap usage is the highest heap usage sampled at the end of each timed phase. It's the usage of the whole JVM, i.e.,
+ * it includes the runs of the other modules of a parallel build; the peak usage of the heap pools isn't used as it's shared by
+ * the whole JVM too and the pools peak at different times.
+ */
+public class Metrics {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final LongAccumulator peakHeapUsed = new LongAccumulator(Math::max, 0);
+
+    public Metrics() {
+        sampleHeap();
+    }
+
+    /**
+     * Records the time elapsed since given start.
+     *
+     * @param timer      the name of the timer
+     * @param startNanos the start as returned by {@link System#nanoTime()}
+     */
+    public void time(String timer, long startNanos) {
+        timers.computeIfAbsent(timer, name -> new Timer()).record(System.nanoTime() - startNanos);
+        sampleHeap();
+    }
+
+    public void increment(String counter, long delta) {
+        counters.computeIfAbsent(counter, name -> new LongAdder()).add(delta);
+    }
+
+    public long getCounter(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * Writes the metrics as JSON into given file.
+     */
+    public void write(File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory: " + directory);
+        }
+        OBJECT_MAPPER.writeValue(file, toJsonNode());
+    }
+
+    /**
+     * @return the metrics recorded so far as JSON
+     */
+    public String toJson() throws IOException {
+        return OBJECT_MAPPER.writeValueAsString(toJsonNode());
+    }
+
+    private ObjectNode toJsonNode() {
+        ObjectNode root = OBJECT_MAPPER.createObjectNode();
+        root.put("start", startTime);
+        root.put("durationMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+        ObjectNode timersNode = root.putObject("timers");
+        new TreeMap<>(timers).forEach((name, timer) -> timersNode.putObject(name)
+                .put("count", timer.count.sum())
+                .put("totalMs", TimeUnit.NANOSECONDS.toMillis(timer.nanos.sum())));
+
+        ObjectNode countersNode = root.putObject("counters");
+        new TreeMap<>(counters).forEach((name, counter) -> countersNode.put(name, counter.sum()));
+
+        sampleHeap();
+        root.putObject("heap")
+                .put("peakUsedBytes", peakHeapUsed.get())
+                .put("maxBytes", Runtime.getRuntime().maxMemory());
+        return root;
+    }
+
+    private void sampleHeap() {
+        peakHeapUsed.accumulate(MEMORY.getHeapMemoryUsage().getUsed());
+    }
+
+    /**
+     * The Timer.
+     */
+    private static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        void record(long elapsedNanos) {
+            count.increment();
+            nanos.add(elapsedNanos);
+        }
+    }
+}
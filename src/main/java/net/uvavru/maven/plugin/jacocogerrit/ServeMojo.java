@@ -0,0 +1,67 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The ServeMojo runs the {@link CoverageService coverage service} until it's asked to shut down. The service collects the
+ * execution data from JaCoCo agents (or exec files posted by CI jobs) and uploads the coverage of the revisions it's asked
+ * for without paying for the startup of Maven and the plugin with each of them.
+ */
+@Mojo(name = "serve", defaultPhase = LifecyclePhase.INITIALIZE, aggregator = true, requiresDirectInvocation = true,
+      requiresOnline = true)
+public class ServeMojo extends JacocoGerritMojo {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServeMojo.class);
+
+    /**
+     * The address to listen on for the connections of JaCoCo agents and for the control requests. Use {@code 0.0.0.0} to
+     * accept them from other hosts.
+     */
+    @Parameter(property = "jacoco-gerrit.serviceAddress", defaultValue = "localhost")
+    private String serviceAddress = "localhost";
+
+    /**
+     * The port that JaCoCo agents running in {@code tcpclient} mode connect to (i.e., the {@code port} option of the agent).
+     */
+    @Parameter(property = "jacoco-gerrit.agentPort", defaultValue = "6300")
+    private int agentPort = 6300;
+
+    /**
+     * The HTTP port of the control requests of the service, such as {@code POST /coverage?changeId=...&revisionId=...}.
+     */
+    @Parameter(property = "jacoco-gerrit.controlPort", defaultValue = "6301")
+    private int controlPort = 6301;
+
+    @Override
+    public void execute() throws MojoFailureException {
+        long start = System.nanoTime();
+        try (CoverageService service = new CoverageService(this)) {
+            service.start();
+            service.awaitShutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Coverage service interrupted.", e);
+        } finally {
+            finish(start);
+        }
+
+        LOGGER.info("Coverage service stopped.");
+    }
+
+    public String getServiceAddress() {
+        return serviceAddress;
+    }
+
+    public int getAgentPort() {
+        return agentPort;
+    }
+
+    public int getControlPort() {
+        return controlPort;
+    }
+}
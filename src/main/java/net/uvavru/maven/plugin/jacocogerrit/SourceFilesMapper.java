@@ -1,17 +1,20 @@
 package net.uvavru.maven.plugin.jacocogerrit;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.project.MavenProject;
@@ -24,58 +27,172 @@ import org.slf4j.LoggerFactory;
 public class SourceFilesMapper {
     private static final Logger LOGGER = LoggerFactory.getLogger(SourceFilesMapper.class);
     private static final String JAVA_SUFFIX = ".java";
+    private static final String JAR_SUFFIX = ".jar";
+    private static final List<String> SOURCE_SUFFIXES = Arrays.asList(JAVA_SUFFIX, ".kt", ".groovy", ".scala");
+    // package-info.java and module-info.java don't have to be compiled to any class
+    private static final String INFO_SUFFIX = "-info.java";
 
     private final JacocoGerritMojo mojo;
 
+    private SourceRootIndex sourceRootIndex;
+    private final Map<String, String> classesLocations = new ConcurrentHashMap<>();
+    private final Map<String, ClassIndex> classIndexes = new ConcurrentHashMap<>();
+
     public SourceFilesMapper(JacocoGerritMojo mojo) {
         this.mojo = mojo;
     }
 
     public Map<String, Map<String, String>> calculateMapping(List<String> relativeSourceFilePaths) throws MojoFailureException {
-        //Map<DirToScan, Map<SourcePathRelativeToProject, SourcePathRelativeToProjectRoot>>
-        Map<String, Map<String, String>> scanMap = new TreeMap<>();
-        List<String> filesNotFound = new ArrayList<>();
-        MavenProject mavenProjectParent = mojo.getProject();
+        Mapping mapping = newMapping();
+        relativeSourceFilePaths.forEach(mapping);
+        return mapping.build();
+    }
 
-        for (String relativeSourceFilePath : relativeSourceFilePaths) {
+    /**
+     * @return a mapping to be filled with source files one by one, e.g., as they are being received from Gerrit
+     */
+    public Mapping newMapping() {
+        return new Mapping();
+    }
 
-            AtomicBoolean foundClassFile = new AtomicBoolean(false);
+    /**
+     * @return the index of the compile source roots of the {@link JacocoGerritMojo#getMappedProjects() mapped projects}; it's
+     * built just once
+     */
+    public synchronized SourceRootIndex getSourceRootIndex() {
+        if (sourceRootIndex == null) {
+            sourceRootIndex = SourceRootIndex.of(mojo.getMappedProjects());
+            LOGGER.debug("Indexed {} compile source roots.", sourceRootIndex.size());
+        }
+        return sourceRootIndex;
+    }
 
-            Path basedir = mavenProjectParent.getBasedir().toPath();
-            Path sourcePath = basedir.resolve(relativeSourceFilePath);
+    /**
+     * @return the location to analyze the classes of given project from, i.e., its output directory or, if the directory
+     * doesn't exist (or the archives are preferred), the archive of the project
+     */
+    public String getClassesLocation(MavenProject project) {
+        return classesLocations.computeIfAbsent(project.getBuild().getOutputDirectory(), outputDirectory -> {
+            if (!mojo.isClassesFromArchives() && new File(outputDirectory).isDirectory()) {
+                return outputDirectory;
+            }
+            File archive = getClassArchive(project);
+            if (!archive.isFile()) {
+                LOGGER.debug("Archive '{}' of project '{}' does not exist.", archive, project.getArtifactId());
+                return outputDirectory;
+            }
+            LOGGER.info("Classes of project '{}' are read from archive: {}", project.getArtifactId(), archive);
+            return archive.getPath();
+        });
+    }
+
+    private File getClassArchive(MavenProject project) {
+        Map<String, File> classArchives = mojo.getClassArchives();
+        if (classArchives != null && classArchives.containsKey(project.getArtifactId())) {
+            return classArchives.get(project.getArtifactId());
+        }
+        if (project.getArtifact() != null && project.getArtifact().getFile() != null
+                && project.getArtifact().getFile().getName().endsWith(JAR_SUFFIX)) {
+            return project.getArtifact().getFile();
+        }
+        return new File(project.getBuild().getDirectory(), project.getBuild().getFinalName() + JAR_SUFFIX);
+    }
+
+    /**
+     * @return the index of the class files of given output directory (or archive); it's built (or updated) just once
+     */
+    public ClassIndex getClassIndex(String classDir) {
+        return classIndexes.computeIfAbsent(classDir, dir -> {
+            long start = System.nanoTime();
+            try {
+                ClassIndex classIndex = ClassIndex.of(new File(dir),
+                                                      mojo.isClassIndexCache() ? mojo.getClassIndexDirectory() : null);
+                mojo.getMetrics().increment("classIndex.classes", classIndex.size());
+                mojo.getMetrics().increment("classIndex.read", classIndex.getRead());
+                return classIndex;
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot index the class files of: " + dir, e);
+            } finally {
+                mojo.getMetrics().time("classIndex", start);
+            }
+        });
+    }
+
+    /**
+     * Brings the class indexes built so far up to date with the class files, e.g., after the modules were rebuilt. It's meant
+     * for a mapper kept by a long-running service; only the changed class files are read again. It must not be called while
+     * a mapping is being calculated.
+     */
+    public void refresh() throws MojoFailureException {
+        classesLocations.clear();
+        long start = System.nanoTime();
+        try {
+            for (Map.Entry<String, ClassIndex> classIndex : classIndexes.entrySet()) {
+                ClassIndex updated = classIndex.getValue().update();
+                mojo.getMetrics().increment("classIndex.read", updated.getRead());
+                classIndex.setValue(updated);
+            }
+        } catch (IOException e) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Cannot update the index of the class files.", e);
+        } finally {
+            mojo.getMetrics().time("classIndex", start);
+        }
+    }
+
+    /**
+     * The Mapping maps source files, added one by one, to the compiled classes. It's not thread safe.
+     */
+    public class Mapping implements Consumer<String> {
+        //Map<DirToScan, Map<VmClassName, SourcePathRelativeToProjectRoot>>
+        private final Map<String, Map<String, String>> scanMap = new TreeMap<>();
+        private final List<String> filesNotFound = new ArrayList<>();
+        private final MavenProject mavenProjectParent = mojo.getProject();
+        private final Path basedir = mojo.getSourceBasedir().toPath();
+
+        // the index is taken on the first file so that the mapping can be created before the index is built
+        private SourceRootIndex sourceRootIndex;
+
+        /**
+         * Maps given source file.
+         *
+         * @param relativeSourceFilePath the path of the source file relative to the basedir of the project
+         */
+        @Override
+        public void accept(String relativeSourceFilePath) {
+            if (sourceRootIndex == null) {
+                sourceRootIndex = getSourceRootIndex();
+            }
 
-            Stream.concat(Stream.of(mavenProjectParent),
-                          mavenProjectParent.getCollectedProjects().stream()).forEach(mavenProject -> {
+            boolean foundClassFile = false;
 
-                LOGGER.debug("Inspecting source file '{}' whether it's located in source root: {}", sourcePath,
-                             mavenProject.getCompileSourceRoots());
+            Path sourcePath = basedir.resolve(relativeSourceFilePath);
 
-                for (String source : mavenProject.getCompileSourceRoots()) {
-                    Path compileSourceRootPath = Paths.get(source);
-                    if (sourcePath.startsWith(compileSourceRootPath)) {
+            List<SourceRootIndex.SourceRoot> sourceRoots = sourceRootIndex.lookup(sourcePath);
+            LOGGER.debug("Source file '{}' is located in source roots: {}", sourcePath, sourceRoots);
 
-                        // the 'relativeSourceFilePath' belongs to 'mavenProject'
-                        int relativizedSourceFilePathCount = sourcePath.relativize(compileSourceRootPath).getNameCount();
-                        Path subPath = sourcePath
-                                .subpath(sourcePath.getNameCount() - relativizedSourceFilePathCount, sourcePath.getNameCount());
+            for (SourceRootIndex.SourceRoot sourceRoot : sourceRoots) {
 
-                        String subPathString = subPath.toString();
+                // the 'relativeSourceFilePath' belongs to 'mavenProject'
+                String subPathString = sourceRoot.relativize(sourcePath).toString().replace(File.separatorChar, '/');
 
-                        // strip '.java'
-                        if (subPathString.endsWith(JAVA_SUFFIX)) {
-                            String classWithPackageAsPath = subPathString
-                                    .substring(0, subPathString.length() - JAVA_SUFFIX.length());
+                String classDir = getClassesLocation(sourceRoot.getProject());
+                List<String> classNames = getClassIndex(classDir).lookup(subPathString, path -> sourceRoot.getProject()
+                        .getCompileSourceRoots().stream().anyMatch(root -> Files.exists(Paths.get(root, path))));
+                LOGGER.debug("Source file '{}' is compiled to classes: {}", subPathString, classNames);
+                if (classNames.isEmpty() && isCompiledSource(subPathString) && Files.exists(sourcePath)) {
+                    LOGGER.warn("No classes of source file '{}' found in '{}', it gets no coverage.", relativeSourceFilePath,
+                                classDir);
+                }
 
-                            String classDir = mavenProject.getBuild().getOutputDirectory();
-                            scanMap.computeIfAbsent(classDir, path -> new HashMap<String, String>())
-                                    .put(classWithPackageAsPath, relativeSourceFilePath);
+                // a java file that doesn't have any classes (yet) is still a source file
+                if (!classNames.isEmpty() || subPathString.endsWith(JAVA_SUFFIX)) {
+                    Map<String, String> classes = scanMap.computeIfAbsent(classDir, path -> new HashMap<String, String>());
+                    classNames.forEach(className -> classes.put(className, relativeSourceFilePath));
 
-                            foundClassFile.set(true);
-                        }
-                    }
+                    foundClassFile = true;
                 }
-            });
-            if (!foundClassFile.get()) {
+            }
+            if (!foundClassFile) {
                 LOGGER.info("File '{}' not identified as a source file in {}.",
                             relativeSourceFilePath, mavenProjectParent);
                 if (!Files.exists(sourcePath)) {
@@ -84,23 +201,36 @@ public class SourceFilesMapper {
                             "File '{}' is not relative to the basedir '{}' of maven project '{}'). Filepath '{}' does not exist! "
                                     + "To override this error, set 'overrideSourceFileNotFoundError' option to 'true'",
                             relativeSourceFilePath,
-                            mavenProjectParent.getBasedir(),
+                            basedir,
                             mavenProjectParent.getName(),
                             sourcePath);
                 }
             }
         }
 
-        // fail in case that source files were not found
-        if (!filesNotFound.isEmpty() && !mojo.isOverrideSourceFileNotFoundError()) {
-            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
-                                   "Some files where not found in the project! Files: " + filesNotFound.stream().collect(
-                                           Collectors.joining(", ")),
-                                   new FileNotFoundException(
-                                           "Files not found, use 'overrideSourceFileNotFoundError' to override this error."));
+        /**
+         * @return the mapping of the added source files keyed by the directory of the compiled classes
+         * @throws MojoFailureException if some of the source files were not found
+         */
+        public Map<String, Map<String, String>> build() throws MojoFailureException {
+            // fail in case that source files were not found
+            if (!filesNotFound.isEmpty() && !mojo.isOverrideSourceFileNotFoundError()) {
+                Utils.logErrorAndThrow(LOGGER, MojoFailureException::new,
+                                       "Some files where not found in the project! Files: " + filesNotFound.stream().collect(
+                                               Collectors.joining(", ")),
+                                       new FileNotFoundException(
+                                               "Files not found, use 'overrideSourceFileNotFoundError' to override this error."));
+            }
+
+            return scanMap;
         }
+    }
 
-        return scanMap;
+    /**
+     * @return whether given source file is expected to be compiled to some classes
+     */
+    private static boolean isCompiledSource(String sourcePath) {
+        return SOURCE_SUFFIXES.stream().anyMatch(sourcePath::endsWith) && !sourcePath.endsWith(INFO_SUFFIX);
     }
 
     private void logErrorOrWarning(String message, Object... argArray) {
@@ -0,0 +1,127 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.maven.project.MavenProject;
+
+/**
+ * The SourceRootIndex is a path-prefix trie of the compile source roots of all the projects of a reactor. It finds all the
+ * source roots containing a source file with a single walk over the names of the source file path.
+ */
+public class SourceRootIndex {
+
+    private final Map<Path, Node> roots = new HashMap<>();
+    private int size;
+
+    /**
+     * Builds the index of the compile source roots of given project and all its collected projects.
+     */
+    public static SourceRootIndex of(MavenProject mavenProjectParent) {
+        return of(Stream.concat(Stream.of(mavenProjectParent), mavenProjectParent.getCollectedProjects().stream())
+                          .collect(Collectors.toList()));
+    }
+
+    /**
+     * Builds the index of the compile source roots of given projects.
+     */
+    public static SourceRootIndex of(List<MavenProject> mavenProjects) {
+        SourceRootIndex index = new SourceRootIndex();
+        mavenProjects.forEach(mavenProject -> mavenProject.getCompileSourceRoots()
+                .forEach(source -> index.add(mavenProject, Paths.get(source))));
+        return index;
+    }
+
+    private void add(MavenProject mavenProject, Path compileSourceRootPath) {
+        Node node = roots.computeIfAbsent(compileSourceRootPath.getRoot(), path -> new Node());
+        for (Path name : compileSourceRootPath) {
+            node = node.children.computeIfAbsent(name, path -> new Node());
+        }
+        node.sourceRoots.add(new SourceRoot(mavenProject, compileSourceRootPath, size++));
+    }
+
+    /**
+     * Finds all the source roots that given source file is located in.
+     *
+     * @param sourcePath the path of the source file
+     * @return the source roots in the order the projects and their source roots were indexed
+     */
+    public List<SourceRoot> lookup(Path sourcePath) {
+        Node node = roots.get(sourcePath.getRoot());
+        List<SourceRoot> result = new ArrayList<>();
+        // the last name is the file itself, that cannot be a source root of itself
+        for (int i = 0; node != null && i < sourcePath.getNameCount() - 1; ++i) {
+            node = node.children.get(sourcePath.getName(i));
+            if (node != null) {
+                result.addAll(node.sourceRoots);
+            }
+        }
+        if (result.size() > 1) {
+            result.sort((left, right) -> Integer.compare(left.ordinal, right.ordinal));
+        }
+        return result.isEmpty() ? Collections.emptyList() : result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        List<String> sourceRoots = new ArrayList<>();
+        roots.values().forEach(node -> node.collect(sourceRoots));
+        return "SourceRootIndex " + sourceRoots.stream().sorted().collect(Collectors.toList());
+    }
+
+    private static class Node {
+        private final Map<Path, Node> children = new HashMap<>();
+        private final List<SourceRoot> sourceRoots = new ArrayList<>(1);
+
+        private void collect(List<String> result) {
+            sourceRoots.forEach(sourceRoot -> result.add(sourceRoot.getPath().toString()));
+            children.values().forEach(child -> child.collect(result));
+        }
+    }
+
+    /**
+     * The compile source root of a project.
+     */
+    public static class SourceRoot {
+        private final MavenProject project;
+        private final Path path;
+        private final int ordinal;
+
+        SourceRoot(MavenProject project, Path path, int ordinal) {
+            this.project = project;
+            this.path = path;
+            this.ordinal = ordinal;
+        }
+
+        public MavenProject getProject() {
+            return project;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * @return the path of given source file relative to this source root
+         */
+        public Path relativize(Path sourcePath) {
+            return sourcePath.subpath(path.getNameCount(), sourcePath.getNameCount());
+        }
+
+        @Override
+        public String toString() {
+            return path + " of " + project.getArtifactId();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The UploadCache keeps the hashes of the coverage of each file uploaded to Gerrit so that a re-run producing the same coverage
+ * (e.g., a retriggered build) doesn't upload it again. The hash of a file is computed from the lines of its coverage model, so
+ * it doesn't depend on the order of the files or on the serialization. Each entry is stored in its own file named by the hash
+ * of its key, e.g., of the URI of the revision; the files are replaced atomically as the cache may be shared by concurrent
+ * builds.
+ */
+public class UploadCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadCache.class);
+    private static final int MAGIC = 0x4A475543;
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+
+    public UploadCache(File directory) {
+        this.directory = directory.toPath().toAbsolutePath();
+    }
+
+    /**
+     * @return the hashes of the coverage of the files of given patchset coverage keyed by the paths of the files
+     */
+    public static Map<String, String> hash(PatchCoverageInput patchCoverageInput) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported.", e);
+        }
+
+        Map<String, String> hashes = new TreeMap<>();
+        ByteBuffer line = ByteBuffer.allocate(4 * Integer.BYTES);
+        patchCoverageInput.getCoverage().forEach((file, fileCoverage) -> {
+            for (int i = 0; i < fileCoverage.size(); ++i) {
+                line.clear();
+                line.putInt(fileCoverage.getLine(i))
+                        .putInt(fileCoverage.getHits(i))
+                        .putInt(fileCoverage.getConditions(i))
+                        .putInt(fileCoverage.getCoveredConditions(i));
+                digest.update(line.array());
+            }
+            // a file without any lines is uploaded too
+            line.clear();
+            digest.update(line.putInt(fileCoverage.size()).array(), 0, Integer.BYTES);
+            hashes.put(file, Utils.toHex(digest.digest()));
+        });
+        return hashes;
+    }
+
+    /**
+     * @return the hashes of the coverage uploaded last with given key or {@code null} if there's none (or the cached file can't
+     * be read)
+     */
+    public Map<String, String> read(String key) {
+        Path file = entryFile(key);
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION || !key.equals(input.readUTF())) {
+                LOGGER.debug("Ignoring incompatible cached upload: {}", file);
+                return null;
+            }
+            int count = input.readInt();
+            Map<String, String> hashes = new TreeMap<>();
+            for (int i = 0; i < count; ++i) {
+                hashes.put(input.readUTF(), input.readUTF());
+            }
+            return hashes;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.debug("Cannot read cached upload: {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the hashes of the coverage uploaded with given key.
+     */
+    public void write(String key, Map<String, String> hashes) throws IOException {
+        Utils.writeAtomically(entryFile(key), stream -> {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                output.writeUTF(key);
+                output.writeInt(hashes.size());
+                for (Map.Entry<String, String> hash : hashes.entrySet()) {
+                    output.writeUTF(hash.getKey());
+                    output.writeUTF(hash.getValue());
+                }
+            }
+        });
+    }
+
+    private Path entryFile(String key) {
+        return directory.resolve(Utils.sha1Hex(key) + ".bin");
+    }
+}
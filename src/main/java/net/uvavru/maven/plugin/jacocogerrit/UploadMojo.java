@@ -0,0 +1,114 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The UploadMojo uploads the coverage artifacts written by the {@code analyze} goal to Gerrit. The artifacts may belong to
+ * different revisions; the artifacts of the same revision (e.g., computed on different workers) are merged and uploaded
+ * together.
+ */
+@Mojo(name = "upload", defaultPhase = LifecyclePhase.INITIALIZE, aggregator = true, requiresDirectInvocation = true,
+      requiresOnline = true)
+public class UploadMojo extends AbstractJacocoGerritMojo {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadMojo.class);
+
+    /**
+     * The coverage artifacts to upload, such as {@code **&#47;target/jacoco-gerrit/coverage*.bin}. The items are paths or glob
+     * patterns resolved against the basedir of the project. If not set, {@link #getCoverageFile()} is uploaded.
+     */
+    @Parameter(property = "jacoco-gerrit.coverageFiles")
+    private List<String> coverageFiles;
+
+    @Override
+    public void execute() throws MojoFailureException {
+        long start = System.nanoTime();
+        int skipped;
+        try {
+            skipped = upload(readArtifacts(resolveCoverageFiles()));
+        } finally {
+            finish(start);
+        }
+
+        if (skipped == 0) {
+            LOGGER.info("Test coverage successfully posted to Gerrit.");
+        } else {
+            LOGGER.info("Test coverage posted to Gerrit, coverage of {} revisions unchanged, upload skipped.", skipped);
+        }
+    }
+
+    private List<File> resolveCoverageFiles() throws MojoFailureException {
+        if (coverageFiles == null || coverageFiles.isEmpty()) {
+            return Collections.singletonList(getCoverageFile());
+        }
+
+        Path basedir = getProject().getBasedir().toPath();
+        Set<Path> files = new TreeSet<>();
+        for (String pattern : coverageFiles) {
+            try {
+                files.addAll(Utils.resolveGlob(basedir, pattern.trim()));
+            } catch (IOException e) {
+                Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Cannot resolve coverage artifacts: " + pattern, e);
+            }
+        }
+        if (files.isEmpty()) {
+            Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "No coverage artifact matches: " + coverageFiles);
+        }
+        return files.stream().map(Path::toFile).collect(Collectors.toList());
+    }
+
+    /**
+     * Reads given artifacts and merges the ones of the same revision.
+     *
+     * @return the artifacts keyed by their revision
+     */
+    private Map<String, CoverageArtifact> readArtifacts(List<File> files) throws MojoFailureException {
+        Map<String, CoverageArtifact> artifacts = new LinkedHashMap<>();
+        for (File file : files) {
+            try {
+                CoverageArtifact artifact = CoverageArtifact.read(file);
+                LOGGER.debug("Coverage artifact '{}' of revision '{}' read.", file, artifact.getRevision());
+                CoverageArtifact merged = artifacts.putIfAbsent(artifact.getRevision(), artifact);
+                if (merged != null) {
+                    merged.getCoverage().merge(artifact.getCoverage());
+                }
+            } catch (IOException e) {
+                Utils.logErrorAndThrow(LOGGER, MojoFailureException::new, "Cannot read coverage artifact: " + file, e);
+            }
+        }
+        getMetrics().increment("artifacts.read", files.size());
+        LOGGER.info("Read {} coverage artifacts of {} revisions.", files.size(), artifacts.size());
+        return artifacts;
+    }
+
+    /**
+     * @return the number of revisions whose upload was skipped as the same coverage was uploaded before
+     */
+    private int upload(Map<String, CoverageArtifact> artifacts) throws MojoFailureException {
+        int skipped = 0;
+        for (CoverageArtifact artifact : artifacts.values()) {
+            LOGGER.info("Uploading the coverage of revision '{}' to Gerrit.", artifact.getRevision());
+            if (!new GerritFacade(this, artifact.getProjectName(), artifact.getBranchName(), artifact.getChangeId(),
+                                  artifact.getRevisionId()).setCoverage(artifact.getCoverage())) {
+                ++skipped;
+            }
+        }
+        return skipped;
+    }
+}
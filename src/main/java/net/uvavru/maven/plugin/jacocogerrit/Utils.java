@@ -1,14 +1,40 @@
 package net.uvavru.maven.plugin.jacocogerrit;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+import org.apache.maven.plugin.MojoFailureException;
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * The Utils.
  */
 public class Utils {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Utils.class);
+    private static final Pattern GLOB_CHARACTERS = Pattern.compile("[*?\\[{]");
+    private static final String ANY_DIRECTORIES = "**/";
 
     public static <T extends Throwable> void logErrorAndThrow(Logger logger, Function<String, T> exceptionThrow, String message)
             throws T {
@@ -26,4 +52,119 @@ public class Utils {
         }
         throw exceptionThrow.apply(message, throwable);
     }
+
+    /**
+     * Fails if given parameter is not set.
+     */
+    public static void requireParameter(String name, Object value) throws MojoFailureException {
+        if (value == null || value.toString().trim().isEmpty()) {
+            logErrorAndThrow(LOGGER, MojoFailureException::new, "The parameter '" + name + "' is missing.");
+        }
+    }
+
+    /**
+     * @return the SHA-1 hash of given string as a hexadecimal string, e.g., to name a file after a path or a URI
+     */
+    public static String sha1Hex(String value) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported.", e);
+        }
+    }
+
+    /**
+     * @return given bytes as a hexadecimal string
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the content of given entry of given archive
+     */
+    public static byte[] readEntry(ZipFile archive, ZipEntry entry) throws IOException {
+        try (InputStream input = archive.getInputStream(entry)) {
+            if (entry.getSize() >= 0 && entry.getSize() <= Integer.MAX_VALUE) {
+                byte[] bytes = new byte[(int) entry.getSize()];
+                new DataInputStream(input).readFully(bytes);
+                return bytes;
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read; (read = input.read(buffer)) != -1; ) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Writes given file atomically, i.e., a reader never sees it partially written. The content is written into a temporary
+     * file next to the file that then replaces it; each writer has its own temporary file as the file may be written by
+     * concurrent builds.
+     */
+    public static void writeAtomically(Path file, OutputWriter writer) throws IOException {
+        Path path = file.toAbsolutePath();
+        Files.createDirectories(path.getParent());
+        Path tempFile = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream output = Files.newOutputStream(tempFile)) {
+                writer.write(output);
+            }
+            Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Resolves given path or glob pattern (such as {@code **&#47;target/*.exec}) against given directory. A leading
+     * {@code **&#47;} matches the directory itself too, e.g., {@code **&#47;target/jacoco.exec} matches the exec file of the root
+     * module as well.
+     *
+     * @return the regular files matching the pattern
+     */
+    public static List<Path> resolveGlob(Path basedir, String pattern) throws IOException {
+        if (!GLOB_CHARACTERS.matcher(pattern).find()) {
+            Path path = basedir.resolve(pattern).normalize();
+            return Files.isRegularFile(path) ? Collections.singletonList(path) : Collections.emptyList();
+        }
+
+        // walk only the directory given by the part of the pattern that doesn't contain any wildcard; the rest of the pattern is
+        // matched against the paths relative to the directory, so the names of the directory are not taken as a glob
+        List<String> names = Arrays.asList(pattern.replace(File.separatorChar, '/').split("/", -1));
+        int literalNames = 0;
+        while (!GLOB_CHARACTERS.matcher(names.get(literalNames)).find()) {
+            ++literalNames;
+        }
+        Path walkRoot = basedir.resolve(String.join("/", names.subList(0, literalNames))).normalize();
+        if (!Files.isDirectory(walkRoot)) {
+            return Collections.emptyList();
+        }
+
+        String glob = String.join("/", names.subList(literalNames, names.size()));
+        PathMatcher matcher = walkRoot.getFileSystem().getPathMatcher("glob:" + glob);
+        // '**/' of a glob stands for at least one directory
+        PathMatcher rootMatcher = glob.startsWith(ANY_DIRECTORIES)
+                ? walkRoot.getFileSystem().getPathMatcher("glob:" + glob.substring(ANY_DIRECTORIES.length()))
+                : matcher;
+        try (Stream<Path> paths = Files.walk(walkRoot)) {
+            return paths.filter(path -> {
+                Path relativePath = walkRoot.relativize(path);
+                return (matcher.matches(relativePath) || rootMatcher.matches(relativePath)) && Files.isRegularFile(path);
+            }).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * The OutputWriter writes the content of a file.
+     */
+    public interface OutputWriter {
+        void write(OutputStream output) throws IOException;
+    }
 }
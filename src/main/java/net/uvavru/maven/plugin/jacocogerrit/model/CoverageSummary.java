@@ -0,0 +1,58 @@
+package net.uvavru.maven.plugin.jacocogerrit.model;
+
+import java.util.Locale;
+
+/**
+ * The patch level summary of the line and condition coverage.
+ */
+public class CoverageSummary {
+    private int coveredLines;
+    private int totalLines;
+    private int coveredConditions;
+    private int totalConditions;
+
+    public static CoverageSummary of(PatchCoverageInput patchCoverageInput) {
+        CoverageSummary summary = new CoverageSummary();
+        for (FileCoverageInput fileCoverage : patchCoverageInput.getCoverage().values()) {
+            for (int i = 0; i < fileCoverage.size(); ++i) {
+                ++summary.totalLines;
+                if (fileCoverage.getHits(i) > 0) {
+                    ++summary.coveredLines;
+                }
+                if (fileCoverage.getConditions(i) != FileCoverageInput.NONE) {
+                    summary.totalConditions += fileCoverage.getConditions(i);
+                }
+                if (fileCoverage.getCoveredConditions(i) != FileCoverageInput.NONE) {
+                    summary.coveredConditions += fileCoverage.getCoveredConditions(i);
+                }
+            }
+        }
+        return summary;
+    }
+
+    public int getCoveredLines() {
+        return coveredLines;
+    }
+
+    public int getTotalLines() {
+        return totalLines;
+    }
+
+    public int getCoveredConditions() {
+        return coveredConditions;
+    }
+
+    public int getTotalConditions() {
+        return totalConditions;
+    }
+
+    @Override
+    public String toString() {
+        return "lines " + coveredLines + "/" + totalLines + " (" + percent(coveredLines, totalLines) + "), conditions "
+                + coveredConditions + "/" + totalConditions + " (" + percent(coveredConditions, totalConditions) + ")";
+    }
+
+    private static String percent(int covered, int total) {
+        return total == 0 ? "n/a" : String.format(Locale.ROOT, "%.1f%%", 100.0 * covered / total);
+    }
+}
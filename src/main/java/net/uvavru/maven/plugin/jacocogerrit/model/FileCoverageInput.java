@@ -1,41 +1,173 @@
 package net.uvavru.maven.plugin.jacocogerrit.model;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.Arrays;
 
-import javax.xml.bind.annotation.XmlElement;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
+/**
+ * The line coverage of a single file. Lines are kept sorted in a single primitive array (as tuples of {@code line, hits,
+ * conditions, coveredConditions}) so that no objects are allocated per line. The JSON representation is still the one
+ * expected by Gerrit, i.e., {@code {"hits": {line: hits}, "conditions": {line: conditions}, "covered_conditions": {line:
+ * coveredConditions}}}.
+ */
+@JsonSerialize(using = FileCoverageInput.Serializer.class)
 public class FileCoverageInput {
-    private Map<Integer, Integer> hits = new HashMap<>();
-    private Map<Integer, Integer> conditions = new HashMap<>();
-    @XmlElement(name = "covered_conditions")
-    private Map<Integer, Integer> coveredConditions = new HashMap<>();
+
+    /**
+     * The value of conditions (or covered conditions) of a line that doesn't have them set.
+     */
+    public static final int NONE = -1;
+
+    private static final int LINE = 0;
+    private static final int HITS = 1;
+    private static final int CONDITIONS = 2;
+    private static final int COVERED_CONDITIONS = 3;
+    private static final int STRIDE = 4;
+
+    private int[] data = new int[16 * STRIDE];
+    private int size;
 
     @Override
     public String toString() {
-        return "PatchCoverageInput [" + "hits=" + hits + ", conditions=" + conditions + ", coveredConditions=" +
-                coveredConditions + "]";
+        StringBuilder hits = new StringBuilder("{");
+        StringBuilder conditions = new StringBuilder("{");
+        StringBuilder coveredConditions = new StringBuilder("{");
+        for (int i = 0; i < size; ++i) {
+            String separator = i == 0 ? "" : ", ";
+            hits.append(separator).append(getLine(i)).append('=').append(getHits(i));
+            conditions.append(separator).append(getLine(i)).append('=').append(getConditions(i));
+            coveredConditions.append(separator).append(getLine(i)).append('=').append(getCoveredConditions(i));
+        }
+        return "FileCoverageInput [" + "hits=" + hits + "}, conditions=" + conditions + "}, coveredConditions=" +
+                coveredConditions + "}]";
     }
 
-    public void setLineCoverage(Integer lineNumber, Integer lineHits, Integer lineConditions, Integer lineCoveredConditions) {
-        hits.put(lineNumber, lineHits);
-        if (lineConditions != null) {
-            conditions.put(lineNumber, lineConditions);
+    /**
+     * Sets the coverage of given line. Already set line is overwritten except for conditions that are {@link #NONE}.
+     */
+    public void setLineCoverage(int lineNumber, int lineHits, int lineConditions, int lineCoveredConditions) {
+        int index;
+        if (size == 0 || data[(size - 1) * STRIDE + LINE] < lineNumber) {
+            // lines are usually set in ascending order
+            index = size;
+        } else {
+            index = indexOf(lineNumber);
         }
-        if (lineCoveredConditions != null) {
-            coveredConditions.put(lineNumber, lineCoveredConditions);
+
+        if (index >= 0 && index < size) {
+            int offset = index * STRIDE;
+            data[offset + HITS] = lineHits;
+            if (lineConditions != NONE) {
+                data[offset + CONDITIONS] = lineConditions;
+            }
+            if (lineCoveredConditions != NONE) {
+                data[offset + COVERED_CONDITIONS] = lineCoveredConditions;
+            }
+            return;
+        }
+
+        int insertionPoint = index >= 0 ? index : -index - 1;
+        if ((size + 1) * STRIDE > data.length) {
+            data = Arrays.copyOf(data, data.length + (data.length >> 1));
         }
+        int offset = insertionPoint * STRIDE;
+        System.arraycopy(data, offset, data, offset + STRIDE, (size - insertionPoint) * STRIDE);
+        data[offset + LINE] = lineNumber;
+        data[offset + HITS] = lineHits;
+        data[offset + CONDITIONS] = lineConditions;
+        data[offset + COVERED_CONDITIONS] = lineCoveredConditions;
+        ++size;
+    }
+
+    /**
+     * Merges given coverage into this one. Lines present in both are overwritten by the values from {@code other}.
+     */
+    public void merge(FileCoverageInput other) {
+        for (int i = 0; i < other.size; ++i) {
+            setLineCoverage(other.getLine(i), other.getHits(i), other.getConditions(i), other.getCoveredConditions(i));
+        }
+    }
+
+    /**
+     * @return the number of lines with coverage
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index the index of the line; lines are sorted in ascending order
+     * @return the line number
+     */
+    public int getLine(int index) {
+        return get(index, LINE);
+    }
+
+    public int getHits(int index) {
+        return get(index, HITS);
     }
 
-    public Map<Integer, Integer> getHits() {
-        return hits;
+    public int getConditions(int index) {
+        return get(index, CONDITIONS);
     }
 
-    public Map<Integer, Integer> getConditions() {
-        return conditions;
+    public int getCoveredConditions(int index) {
+        return get(index, COVERED_CONDITIONS);
     }
 
-    public Map<Integer, Integer> getCoveredConditions() {
-        return coveredConditions;
+    private int get(int index, int field) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return data[index * STRIDE + field];
+    }
+
+    private int indexOf(int lineNumber) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midLine = data[mid * STRIDE + LINE];
+            if (midLine < lineNumber) {
+                low = mid + 1;
+            } else if (midLine > lineNumber) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Writes {@link FileCoverageInput} in the same shape as three {@code Map<Integer, Integer>} would be written.
+     */
+    public static class Serializer extends JsonSerializer<FileCoverageInput> {
+
+        @Override
+        public void serialize(FileCoverageInput value, JsonGenerator generator, SerializerProvider serializers)
+                throws IOException {
+            generator.writeStartObject();
+            writeLines(generator, value, "hits", HITS);
+            writeLines(generator, value, "conditions", CONDITIONS);
+            writeLines(generator, value, "covered_conditions", COVERED_CONDITIONS);
+            generator.writeEndObject();
+        }
+
+        private static void writeLines(JsonGenerator generator, FileCoverageInput value, String name, int field)
+                throws IOException {
+            generator.writeObjectFieldStart(name);
+            for (int i = 0; i < value.size; ++i) {
+                int lineValue = value.data[i * STRIDE + field];
+                if (lineValue != NONE) {
+                    generator.writeNumberField(Integer.toString(value.data[i * STRIDE + LINE]), lineValue);
+                }
+            }
+            generator.writeEndObject();
+        }
     }
 }
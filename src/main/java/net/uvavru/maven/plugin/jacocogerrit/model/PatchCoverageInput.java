@@ -16,11 +16,20 @@ public class PatchCoverageInput {
     }
 
     public void setLineCoverage(String filePath,
-                                Integer lineNumber,
-                                Integer hits,
-                                Integer conditions,
-                                Integer coveredConditions) {
+                                int lineNumber,
+                                int hits,
+                                int conditions,
+                                int coveredConditions) {
         FileCoverageInput fileCoverage = coverage.computeIfAbsent(filePath, s -> new FileCoverageInput());
         fileCoverage.setLineCoverage(lineNumber, hits, conditions, coveredConditions);
     }
+
+    /**
+     * Merges given coverage into this one. Lines present in both are overwritten by the values from {@code other}.
+     */
+    public void merge(PatchCoverageInput other) {
+        other.coverage.forEach((filePath, otherFileCoverage) -> coverage
+                .computeIfAbsent(filePath, s -> new FileCoverageInput())
+                .merge(otherFileCoverage));
+    }
 }
@@ -0,0 +1,77 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class ClassIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File classes;
+
+    @Before
+    public void setUp() throws IOException {
+        classes = temporaryFolder.newFolder("classes");
+    }
+
+    @Test
+    public void javaClassesAreMappedByPackageAndSourceFile() throws IOException {
+        TestClasses.write(classes.toPath(), "pkg/Foo", "Foo.java");
+        TestClasses.write(classes.toPath(), "pkg/Foo$Inner", "Foo.java");
+        TestClasses.write(classes.toPath(), "pkg/Secondary", "Foo.java");
+        TestClasses.write(classes.toPath(), "pkg/Bar", "Bar.java");
+
+        ClassIndex classIndex = ClassIndex.of(classes, null);
+
+        assertEquals(Arrays.asList("pkg/Foo", "pkg/Foo$Inner", "pkg/Secondary"), classIndex.lookup("pkg/Foo.java"));
+        assertEquals(Collections.singletonList("pkg/Bar"), classIndex.lookup("pkg/Bar.java"));
+    }
+
+    @Test
+    public void kotlinClassesAreMappedRegardlessOfTheirDirectory() throws IOException {
+        // the files are located in 'ui' while their package is 'com.example.app.ui'
+        TestClasses.write(classes.toPath(), "com/example/app/ui/FooKt", "Foo.kt");
+        TestClasses.write(classes.toPath(), "com/example/app/ui/Widget", "Foo.kt");
+        TestClasses.write(classes.toPath(), "com/example/app/ui/BarKt", "Bar.kt");
+
+        ClassIndex classIndex = ClassIndex.of(classes, null);
+
+        assertEquals(Arrays.asList("com/example/app/ui/FooKt", "com/example/app/ui/Widget"), classIndex.lookup("ui/Foo.kt"));
+        assertEquals(Collections.singletonList("com/example/app/ui/BarKt"), classIndex.lookup("ui/Bar.kt"));
+        assertEquals(Collections.singletonList("com/example/app/ui/BarKt"), classIndex.lookup("Bar.kt"));
+    }
+
+    @Test
+    public void packageSharingMostDirectoriesWins() throws IOException {
+        TestClasses.write(classes.toPath(), "com/example/app/ui/MainKt", "Main.kt");
+        TestClasses.write(classes.toPath(), "com/example/cli/MainKt", "Main.kt");
+
+        ClassIndex classIndex = ClassIndex.of(classes, null);
+
+        assertEquals(Collections.singletonList("com/example/app/ui/MainKt"), classIndex.lookup("app/ui/Main.kt"));
+        assertEquals(Collections.singletonList("com/example/cli/MainKt"), classIndex.lookup("cli/Main.kt"));
+        // ambiguous
+        assertEquals(Collections.emptyList(), classIndex.lookup("Main.kt"));
+    }
+
+    @Test
+    public void classesOfExistingSourceFileAreNotTakenByAnother() throws IOException {
+        TestClasses.write(classes.toPath(), "a/Util", "Util.java");
+
+        ClassIndex classIndex = ClassIndex.of(classes, null);
+
+        // e.g., a new source file that isn't compiled yet
+        assertEquals(Collections.emptyList(), classIndex.lookup("b/Util.java", "a/Util.java"::equals));
+        assertEquals(Collections.singletonList("a/Util"), classIndex.lookup("a/Util.java", "a/Util.java"::equals));
+    }
+}
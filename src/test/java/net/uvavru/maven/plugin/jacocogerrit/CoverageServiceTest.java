@@ -0,0 +1,324 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.maven.model.Build;
+import org.apache.maven.project.MavenProject;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.SessionInfo;
+import org.jacoco.core.runtime.RemoteControlReader;
+import org.jacoco.core.runtime.RemoteControlWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the coverage service against a stand-in Gerrit and a stand-in JaCoCo agent, both in-process.
+ */
+public class CoverageServiceTest {
+    private static final String SOURCE_FILE = "src/main/java/pkg/Foo.java";
+    private static final String REVISION_ID = "d80c5bff4a0cb4e0ff2a8bbd3bd1e5ce2d0c7d2e";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer gerrit;
+    // the bodies of the requests to Gerrit keyed by their paths
+    private final Map<String, byte[]> uploads = new ConcurrentHashMap<>();
+    private File metricsFile;
+    private File uploadCacheDirectory;
+    private long classId;
+    private CoverageService service;
+
+    @Before
+    public void setUp() throws Exception {
+        File basedir = temporaryFolder.newFolder("project");
+        Path sourceFile = basedir.toPath().resolve(SOURCE_FILE);
+        Files.createDirectories(sourceFile.getParent());
+        Files.write(sourceFile,
+                    "package pkg;\n\nclass Foo {\n    static void run() {\n    }\n}\n".getBytes(StandardCharsets.UTF_8));
+        classId = TestClasses.write(basedir.toPath().resolve("target/classes"), "pkg/Foo", "Foo.java");
+        metricsFile = new File(temporaryFolder.getRoot(), "metrics.json");
+        uploadCacheDirectory = new File(temporaryFolder.getRoot(), "uploads");
+
+        gerrit = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        gerrit.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getRawPath();
+            uploads.put(path, readAll(exchange.getRequestBody()));
+            if (path.endsWith("/files")) {
+                byte[] body = (")]}'\n{\"" + SOURCE_FILE + "\": {\"lines_inserted\": 3}}").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            } else {
+                exchange.sendResponseHeaders(path.endsWith("/coverage") ? 204 : 404, -1);
+            }
+            exchange.close();
+        });
+        gerrit.start();
+
+        MavenProject project = new MavenProject();
+        project.setFile(new File(basedir, "pom.xml"));
+        project.addCompileSourceRoot(new File(basedir, "src/main/java").getPath());
+        Build build = new Build();
+        build.setOutputDirectory(new File(basedir, "target/classes").getPath());
+        project.setBuild(build);
+        project.setCollectedProjects(new ArrayList<>());
+
+        service = new CoverageService(new TestServeMojo(project));
+        service.start();
+    }
+
+    @After
+    public void tearDown() {
+        service.close();
+        gerrit.stop(0);
+    }
+
+    @Test
+    public void coverageCollectedFromConnectedAgentIsUploaded() throws Exception {
+        AtomicInteger dumps = new AtomicInteger();
+        try (Socket agent = connectAgent(dumps)) {
+            awaitStatus("Agents connected: 1");
+
+            assertEquals("200 Coverage of revision 'proj~master~I1/r1' posted to Gerrit.",
+                         request("POST", "/coverage?changeId=I1&revisionId=r1", null));
+            assertEquals(1, dumps.get());
+        }
+
+        JsonNode coverage = uploadedCoverage("r1");
+        assertEquals(1, coverage.path("coverage").path(SOURCE_FILE).path("hits").path(String.valueOf(TestClasses.LINE)).asInt());
+    }
+
+    @Test
+    public void coverageOfPostedExecFileIsUploaded() throws Exception {
+        ByteArrayOutputStream exec = new ByteArrayOutputStream();
+        ExecutionDataWriter writer = new ExecutionDataWriter(exec);
+        writer.visitClassExecution(new ExecutionData(classId, "pkg/Foo", new boolean[]{true}));
+
+        assertEquals("200 Execution data of 1 classes received.", request("POST", "/exec", exec.toByteArray()));
+        assertEquals("200 Agents connected: 0, classes with execution data: 1", request("GET", "/status", null));
+        assertTrue(request("POST", "/coverage?changeId=I1&revisionId=r2&dump=false", null).startsWith("200 "));
+
+        JsonNode coverage = uploadedCoverage("r2");
+        assertEquals(1, coverage.path("coverage").path(SOURCE_FILE).path("hits").path(String.valueOf(TestClasses.LINE)).asInt());
+    }
+
+    @Test
+    public void sameCoverageIsUploadedOnce() throws Exception {
+        String path = "/coverage?changeId=I1&revisionId=" + REVISION_ID + "&dump=false";
+
+        assertEquals("200 Coverage of revision 'proj~master~I1/" + REVISION_ID + "' posted to Gerrit.",
+                     request("POST", path, null));
+        uploads.clear();
+        assertEquals("200 Coverage of revision 'proj~master~I1/" + REVISION_ID + "' unchanged, upload skipped.",
+                     request("POST", path, null));
+        assertTrue(uploads.keySet().stream().noneMatch(upload -> upload.endsWith("/coverage")));
+    }
+
+    @Test
+    public void metricsAreReportedAfterEachUpload() throws Exception {
+        assertTrue(request("POST", "/coverage?changeId=I1&revisionId=r3&dump=false", null).startsWith("200 "));
+
+        JsonNode written = OBJECT_MAPPER.readTree(metricsFile);
+        assertEquals(1, written.path("counters").path("service.uploads").asInt());
+        JsonNode reported = OBJECT_MAPPER.readTree(request("GET", "/metrics", null).substring("200 ".length()));
+        assertEquals(1, reported.path("counters").path("service.uploads").asInt());
+    }
+
+    @Test
+    public void requestsWithWrongMethodAreRejected() throws Exception {
+        assertEquals("405 Method GET not allowed.", request("GET", "/coverage?changeId=I1&revisionId=r4", null));
+        assertEquals("405 Method POST not allowed.", request("POST", "/status", null));
+        assertEquals("500 The parameter 'changeId' is missing.", request("POST", "/coverage?revisionId=r4", null));
+    }
+
+    /**
+     * Connects a stand-in of a JaCoCo agent running in {@code tcpclient} mode that answers each dump with the execution
+     * data of the only class.
+     */
+    private Socket connectAgent(AtomicInteger dumps) throws IOException {
+        Socket socket = new Socket("127.0.0.1", service.getAgentPort());
+        RemoteControlWriter writer = new RemoteControlWriter(socket.getOutputStream());
+        RemoteControlReader reader = new RemoteControlReader(socket.getInputStream());
+        reader.setRemoteCommandVisitor((dump, reset) -> {
+            try {
+                if (dump) {
+                    dumps.incrementAndGet();
+                    writer.visitSessionInfo(new SessionInfo("agent", 0, 0));
+                    writer.visitClassExecution(new ExecutionData(classId, "pkg/Foo", new boolean[]{true}));
+                }
+                writer.sendCmdOk();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        Thread thread = new Thread(() -> {
+            try {
+                while (reader.read()) {
+                    // the commands are answered by the visitor
+                }
+            } catch (IOException e) {
+                // closed by the test
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return socket;
+    }
+
+    private void awaitStatus(String prefix) throws Exception {
+        for (int i = 0; i < 100 && !request("GET", "/status", null).startsWith("200 " + prefix); ++i) {
+            Thread.sleep(50);
+        }
+    }
+
+    private JsonNode uploadedCoverage(String revisionId) throws IOException {
+        for (Map.Entry<String, byte[]> upload : uploads.entrySet()) {
+            if (upload.getKey().endsWith("/revisions/" + revisionId + "/coverage")) {
+                return OBJECT_MAPPER.readTree(upload.getValue());
+            }
+        }
+        throw new AssertionError("Coverage of revision '" + revisionId + "' not uploaded: " + uploads.keySet());
+    }
+
+    private String request(String method, String path, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + service.getControlPort() + path)
+                .openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(body);
+            }
+        }
+        int status = connection.getResponseCode();
+        try (InputStream inputStream = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            return status + " " + new String(readAll(inputStream), StandardCharsets.UTF_8).trim();
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) > 0) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private class TestServeMojo extends ServeMojo {
+        private final MavenProject project;
+
+        TestServeMojo(MavenProject project) {
+            this.project = project;
+        }
+
+        @Override
+        public String getHost() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public Integer getPort() {
+            return gerrit.getAddress().getPort();
+        }
+
+        @Override
+        public String getScheme() {
+            return "http";
+        }
+
+        @Override
+        public String getBasePath() {
+            return "/";
+        }
+
+        @Override
+        public String getUsername() {
+            return "user";
+        }
+
+        @Override
+        public String getPassword() {
+            return "secret";
+        }
+
+        @Override
+        public String getProjectName() {
+            return "proj";
+        }
+
+        @Override
+        public MavenProject getProject() {
+            return project;
+        }
+
+        @Override
+        public boolean isAnalysisCache() {
+            return false;
+        }
+
+        @Override
+        public boolean isClassIndexCache() {
+            return false;
+        }
+
+        @Override
+        public int getTimeout() {
+            return 30;
+        }
+
+        @Override
+        public String getServiceAddress() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public int getAgentPort() {
+            return 0;
+        }
+
+        @Override
+        public int getControlPort() {
+            return 0;
+        }
+
+        @Override
+        public UploadCache getUploadCache() {
+            return new UploadCache(uploadCacheDirectory);
+        }
+
+        @Override
+        public File getMetricsFile() {
+            return metricsFile;
+        }
+    }
+}
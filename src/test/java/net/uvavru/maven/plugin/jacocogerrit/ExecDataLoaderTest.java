@@ -0,0 +1,184 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.data.SessionInfo;
+import org.jacoco.core.runtime.RemoteControlReader;
+import org.jacoco.core.runtime.RemoteControlWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Dumps the execution data from stand-ins of JaCoCo agents running in {@code tcpserver} mode.
+ */
+public class ExecDataLoaderTest {
+    private ServerSocket agent;
+    // the commands received by the agent as "dump=..., reset=..."
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+    private boolean agentReset;
+
+    @Before
+    public void setUp() throws IOException {
+        agent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        agent.close();
+    }
+
+    @Test
+    public void dumpKeepsOnlyGivenClasses() throws Exception {
+        serveDumps();
+        agentReset = true;
+
+        ExecutionDataStore store = newLoader().load(Collections.emptyList(), Collections.singleton("pkg/Foo"));
+
+        assertNotNull(store.get("pkg/Foo".hashCode()));
+        assertNull(store.get("pkg/Bar".hashCode()));
+        assertEquals(Collections.singletonList("dump=true, reset=true"), commands);
+    }
+
+    @Test
+    public void dumpsOfAllAgentsAreMerged() throws Exception {
+        serveDumps();
+
+        ExecutionDataStore store = newLoader(endpoint(), endpoint()).load(Collections.emptyList(), null);
+
+        assertEquals(2, store.getContents().size());
+        assertEquals(Arrays.asList("dump=true, reset=false", "dump=true, reset=false"), commands);
+    }
+
+    @Test
+    public void agentNotRespondingTimesOut() throws Exception {
+        // accepts the connection, but never answers the command
+        Thread thread = new Thread(() -> {
+            try (Socket ignored = agent.accept()) {
+                Thread.sleep(10_000);
+            } catch (IOException | InterruptedException e) {
+                // closed by the test
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        long start = System.nanoTime();
+        try {
+            newLoader().load(Collections.emptyList(), null);
+            fail("The dump of an agent that doesn't respond must fail.");
+        } catch (MojoFailureException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        thread.interrupt();
+    }
+
+    @Test(expected = MojoFailureException.class)
+    public void agentEndpointWithoutPortIsRejected() throws Exception {
+        new ExecDataLoader(new TestMojo(Collections.singletonList("localhost"))).load(Collections.emptyList(), null);
+    }
+
+    private ExecDataLoader newLoader(String... agents) {
+        List<String> endpoints = agents.length == 0 ? Collections.singletonList(endpoint()) : Arrays.asList(agents);
+        return new ExecDataLoader(new TestMojo(endpoints));
+    }
+
+    private String endpoint() {
+        return agent.getInetAddress().getHostAddress() + ":" + agent.getLocalPort();
+    }
+
+    /**
+     * Answers each dump command of each connection with the execution data of {@code pkg/Foo} and {@code pkg/Bar}.
+     */
+    private void serveDumps() {
+        Thread thread = new Thread(() -> {
+            while (!agent.isClosed()) {
+                try {
+                    Socket socket = agent.accept();
+                    Thread connection = new Thread(() -> serveDumps(socket));
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch (IOException e) {
+                    // closed by the test
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serveDumps(Socket socket) {
+        try (Socket ignored = socket) {
+            RemoteControlWriter writer = new RemoteControlWriter(socket.getOutputStream());
+            RemoteControlReader reader = new RemoteControlReader(socket.getInputStream());
+            reader.setRemoteCommandVisitor((dump, reset) -> {
+                commands.add("dump=" + dump + ", reset=" + reset);
+                try {
+                    writer.visitSessionInfo(new SessionInfo("agent", 0, 0));
+                    writer.visitClassExecution(new ExecutionData("pkg/Foo".hashCode(), "pkg/Foo", new boolean[]{true}));
+                    writer.visitClassExecution(new ExecutionData("pkg/Bar".hashCode(), "pkg/Bar", new boolean[]{false}));
+                    writer.sendCmdOk();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            while (reader.read()) {
+                // the commands are answered by the visitor
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // the loader closed the connection
+        }
+    }
+
+    private class TestMojo extends JacocoGerritMojo {
+        private final List<String> agents;
+
+        TestMojo(List<String> agents) {
+            this.agents = agents;
+        }
+
+        @Override
+        public List<String> getAgents() {
+            return agents;
+        }
+
+        @Override
+        public boolean isAgentReset() {
+            return agentReset;
+        }
+
+        @Override
+        public int getConnectTimeout() {
+            return 1;
+        }
+
+        @Override
+        public int getReadTimeout() {
+            return 1;
+        }
+
+        @Override
+        public int getAnalysisThreads() {
+            return 1;
+        }
+    }
+}
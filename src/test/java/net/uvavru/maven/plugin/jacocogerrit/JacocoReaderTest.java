@@ -0,0 +1,134 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.uvavru.maven.plugin.jacocogerrit.model.PatchCoverageInput;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JacocoReaderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File classes;
+    private final Map<String, Map<String, String>> mapping = new HashMap<>();
+    private final ExecutionDataStore executionData = new ExecutionDataStore();
+
+    @Before
+    public void setUp() throws IOException {
+        classes = temporaryFolder.newFolder("classes");
+        long fooId = TestClasses.write(classes.toPath(), "pkg/Foo", "Foo.java");
+        long barId = TestClasses.write(classes.toPath(), "pkg/Bar", "Bar.java");
+
+        Map<String, String> stringMap = new HashMap<>();
+        stringMap.put("pkg/Foo", "src/main/java/pkg/Foo.java");
+        stringMap.put("pkg/Bar", "src/main/java/pkg/Bar.java");
+        mapping.put(classes.getPath(), stringMap);
+
+        executionData.put(new ExecutionData(fooId, "pkg/Foo", new boolean[]{true}));
+        // recorded for a class file compiled before pkg/Bar changed
+        executionData.put(new ExecutionData(barId + 1, "pkg/Bar", new boolean[]{true}));
+    }
+
+    @Test
+    public void mismatchedClassesFailTheRun() {
+        for (boolean targetedAnalysis : new boolean[]{true, false}) {
+            try {
+                new JacocoReader(new TestMojo(targetedAnalysis, false)).readCoverage(mapping, executionData, null);
+                fail("The coverage of a recompiled class must not be read.");
+            } catch (MojoFailureException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("pkg/Bar (source file 'src/main/java/pkg/Bar.java'"));
+            }
+        }
+    }
+
+    @Test
+    public void mismatchedClassesFailTheRunBeforeAnyAnalysis() throws IOException {
+        File analysisCacheDirectory = new File(temporaryFolder.getRoot(), "analysis");
+        TestMojo mojo = new TestMojo(true, false) {
+            @Override
+            public boolean isAnalysisCache() {
+                return true;
+            }
+
+            @Override
+            public File getAnalysisCacheDirectory() {
+                return analysisCacheDirectory;
+            }
+        };
+
+        try {
+            new JacocoReader(mojo).readCoverage(mapping, executionData, null);
+            fail("The coverage of a recompiled class must not be read.");
+        } catch (MojoFailureException e) {
+            assertEquals(1, mojo.getMetrics().getCounter("classes.mismatched"));
+        }
+        assertEquals(0, mojo.getMetrics().getCounter("classes.scanned"));
+        String[] cacheEntries = analysisCacheDirectory.list();
+        assertTrue(cacheEntries == null || cacheEntries.length == 0);
+    }
+
+    @Test
+    public void mismatchedClassesAreSkipped() throws MojoFailureException {
+        for (boolean targetedAnalysis : new boolean[]{true, false}) {
+            PatchCoverageInput coverage = new JacocoReader(new TestMojo(targetedAnalysis, true))
+                    .readCoverage(mapping, executionData, null);
+
+            assertEquals(Collections.singleton("src/main/java/pkg/Foo.java"), coverage.getCoverage().keySet());
+            assertEquals(1, coverage.getCoverage().get("src/main/java/pkg/Foo.java").getHits(0));
+        }
+    }
+
+    private class TestMojo extends JacocoGerritMojo {
+        private final boolean targetedAnalysis;
+        private final boolean skipMismatchedClasses;
+
+        TestMojo(boolean targetedAnalysis, boolean skipMismatchedClasses) {
+            this.targetedAnalysis = targetedAnalysis;
+            this.skipMismatchedClasses = skipMismatchedClasses;
+        }
+
+        @Override
+        public MavenProject getProject() {
+            MavenProject project = new MavenProject();
+            project.setFile(new File(temporaryFolder.getRoot(), "pom.xml"));
+            return project;
+        }
+
+        @Override
+        public boolean isTargetedAnalysis() {
+            return targetedAnalysis;
+        }
+
+        @Override
+        public boolean isSkipMismatchedClasses() {
+            return skipMismatchedClasses;
+        }
+
+        @Override
+        public boolean isAnalysisCache() {
+            return false;
+        }
+
+        @Override
+        public int getAnalysisThreads() {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package net.uvavru.maven.plugin.jacocogerrit;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.jacoco.core.internal.data.CRC64;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * The TestClasses generates class files for the tests.
+ */
+final class TestClasses {
+    /**
+     * The line of the only method of the generated classes.
+     */
+    static final int LINE = 4;
+
+    private TestClasses() {
+    }
+
+    /**
+     * Writes a class compiled from given source file with a single static method on {@link #LINE}, i.e., with a single probe.
+     *
+     * @param classesDirectory the output directory to write the class file into
+     * @param className        the VM name of the class, such as {@code pkg/Foo}
+     * @param sourceFile       the name of the source file of the class, such as {@code Foo.java}
+     * @return the id of the class, i.e., the checksum of its class file
+     */
+    static long write(Path classesDirectory, String className, String sourceFile) throws IOException {
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classWriter.visit(Opcodes.V1_8, Opcodes.ACC_SUPER, className, null, "java/lang/Object", null);
+        classWriter.visitSource(sourceFile, null);
+        MethodVisitor method = classWriter.visitMethod(Opcodes.ACC_STATIC, "run", "()V", null, null);
+        method.visitCode();
+        Label label = new Label();
+        method.visitLabel(label);
+        method.visitLineNumber(LINE, label);
+        method.visitInsn(Opcodes.RETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+        classWriter.visitEnd();
+
+        byte[] bytes = classWriter.toByteArray();
+        Path classFile = classesDirectory.resolve(className + ".class");
+        Files.createDirectories(classFile.getParent());
+        Files.write(classFile, bytes);
+        return CRC64.checksum(bytes);
+    }
+}